@@ -0,0 +1,90 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.netbeans.modules.keyring.fallback.FallbackProvider;
+import org.netbeans.modules.keyring.gnome.GnomeProvider;
+import org.netbeans.modules.keyring.kde.KWalletProvider;
+import org.netbeans.spi.keyring.KeyringProvider;
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.preferences.JosmBaseDirectories;
+import org.openstreetmap.josm.data.preferences.JosmUrls;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Creates the keyring backends the benchmarks run against.
+ * <ul>
+ * <li>{@code memory}: the reference {@link MemoryKeyringProvider}, as baseline</li>
+ * <li>{@code fallback}: {@link FallbackProvider} with in-memory preferences and AES encryption</li>
+ * <li>{@code kwallet}: {@link KWalletProvider} against a {@link FakeKwalletd}, configured by the system
+ *     property {@value FakeKwalletd#PROPERTY}</li>
+ * <li>{@code gnome}: {@link GnomeProvider}, needs a running keyring daemon, e.g. in a {@link PrivateSecretService}</li>
+ * </ul>
+ * If the system property {@value FaultInjectingKeyringProvider#PROPERTY} is set, the backend is
+ * wrapped in a {@link FaultInjectingKeyringProvider} with that specification.
+ */
+public final class BenchmarkBackends {
+
+    private BenchmarkBackends() {}
+
+    /**
+     * Create and enable a backend.
+     * @param name the backend name
+     * @param tempDir a directory for files of the backend
+     * @return the backend
+     * @throws IOException if files of the backend cannot be created
+     * @throws GeneralSecurityException if the encryption cannot be set up
+     */
+    public static KeyringProvider create(String name, Path tempDir) throws IOException, GeneralSecurityException {
+        KeyringProvider provider;
+        switch (name) {
+            case "memory":
+                provider = new MemoryKeyringProvider();
+                break;
+            case "fallback":
+                provider = new FallbackProvider(new BenchmarkEncryption(), new MemoryPreferences());
+                break;
+            case "kwallet":
+                FakeKwalletd.create(tempDir, System.getProperty(FakeKwalletd.PROPERTY, "")).install();
+                provider = new KWalletProvider();
+                break;
+            case "gnome":
+                provider = new GnomeProvider();
+                break;
+            default:
+                throw new IllegalArgumentException(name);
+        }
+        if (!provider.enabled()) {
+            throw new IllegalStateException("Backend " + name + " is not available");
+        }
+        return FaultInjectingKeyringProvider.fromSystemProperty(provider);
+    }
+
+    /**
+     * Set up the JOSM configuration with in-memory preferences, as needed by {@link NPMCredentialsAgent}.
+     */
+    public static void initJosmConfig() {
+        Config.setBaseDirectoriesProvider(JosmBaseDirectories.getInstance());
+        Config.setUrlsProvider(JosmUrls.getInstance());
+        Config.setPreferencesInstance(Preferences.main());
+    }
+
+    /**
+     * Delete a temporary directory with all its content.
+     * @param dir the directory
+     * @throws IOException if deleting fails
+     */
+    public static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
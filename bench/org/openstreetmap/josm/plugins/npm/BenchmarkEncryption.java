@@ -0,0 +1,84 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.Callable;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import org.netbeans.modules.keyring.spi.EncryptionProvider;
+import org.netbeans.modules.keyring.utils.Utils;
+
+/**
+ * AES-GCM {@link EncryptionProvider} with a random key, standing in for the platform
+ * encryption (e.g. Windows data protection) of the {@code FallbackProvider} in benchmarks.
+ */
+public class BenchmarkEncryption implements EncryptionProvider {
+
+    private static final int IV_LENGTH = 12;
+
+    private final SecureRandom random = new SecureRandom();
+    private final SecretKey key;
+
+    /**
+     * Create a new {@link BenchmarkEncryption} with a fresh key
+     * @throws GeneralSecurityException if AES is not available
+     */
+    public BenchmarkEncryption() throws GeneralSecurityException {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        key = generator.generateKey();
+    }
+
+    @Override
+    public boolean enabled() {
+        return true;
+    }
+
+    @Override
+    public String id() {
+        return "AES-GCM";
+    }
+
+    @Override
+    public byte[] encrypt(char[] cleartext) throws Exception {
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+        byte[] ciphertext = cipher.doFinal(Utils.chars2Bytes(cleartext));
+        return ByteBuffer.allocate(IV_LENGTH + ciphertext.length).put(iv).put(ciphertext).array();
+    }
+
+    @Override
+    public char[] decrypt(byte[] ciphertext) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, ciphertext, 0, IV_LENGTH));
+        return Utils.bytes2Chars(cipher.doFinal(ciphertext, IV_LENGTH, ciphertext.length - IV_LENGTH));
+    }
+
+    @Override
+    public boolean decryptionFailed() {
+        return false;
+    }
+
+    @Override
+    public void encryptionChangingCallback(Callable<Void> callback) {
+        // the key never changes
+    }
+
+    @Override
+    public void encryptionChanged() {
+        // the key never changes
+    }
+
+    @Override
+    public void freshKeyring(boolean fresh) {
+        // nothing to prepare
+    }
+}
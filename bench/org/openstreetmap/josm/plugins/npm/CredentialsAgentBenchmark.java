@@ -0,0 +1,80 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.net.Authenticator.RequestorType;
+import java.net.PasswordAuthentication;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.josm.io.auth.CredentialsAgentException;
+
+/**
+ * The complete {@link NPMCredentialsAgent#lookup} path, from the agent through
+ * its caches, the write-behind queue and the keyring executor to the backend.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CredentialsAgentBenchmark {
+
+    private static final String HOST = "tiles.example.com";
+
+    @Param({"fallback", "kwallet"})
+    public String backend;
+
+    private Path tempDir;
+    private NPMCredentialsAgent agent;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkBackends.initJosmConfig();
+        tempDir = Files.createTempDirectory("npm-benchmark");
+        agent = new NPMCredentialsAgent(NPMType.PLAIN, BenchmarkBackends.create(backend, tempDir));
+        agent.store(RequestorType.SERVER, HOST, new PasswordAuthentication("benchmark-user", "secret".toCharArray()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        agent.store(RequestorType.SERVER, HOST, null);
+        agent.close();
+        BenchmarkBackends.deleteRecursively(tempDir);
+    }
+
+    /**
+     * Lookup answered from the agent's cache.
+     * @return the credentials
+     * @throws CredentialsAgentException if the backend fails
+     */
+    @Benchmark
+    public PasswordAuthentication lookupCached() throws CredentialsAgentException {
+        return agent.lookup(RequestorType.SERVER, HOST);
+    }
+
+    /**
+     * Lookup which has to go to the backend.
+     * @return the credentials
+     * @throws CredentialsAgentException if the backend fails
+     */
+    @Benchmark
+    public PasswordAuthentication lookupUncached() throws CredentialsAgentException {
+        agent.purgeCredentialsCache(RequestorType.SERVER);
+        return agent.lookup(RequestorType.SERVER, HOST);
+    }
+}
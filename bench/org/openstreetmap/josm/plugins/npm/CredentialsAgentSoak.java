@@ -0,0 +1,102 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.net.Authenticator.RequestorType;
+import java.net.PasswordAuthentication;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.netbeans.spi.keyring.KeyringProvider;
+import org.openstreetmap.josm.io.auth.CredentialsAgentException;
+
+/**
+ * Lets several threads look up and store credentials through {@link NPMCredentialsAgent} for a while,
+ * usually against a backend degraded by {@link FaultInjectingKeyringProvider}, and reports the
+ * exceptions callers saw and the {@link KeyringMetrics} of the backend. Run it with
+ * <pre>mvn -P benchmark compile exec:exec -Dbench.main=org.openstreetmap.josm.plugins.npm.CredentialsAgentSoak
+ *     -Dbench.args="kwallet 60 8" -Dnpm.faults="*:latency=exp:20ms;read_all:slow=0.02@3s;save_all:error=0.05"</pre>
+ * Arguments: backend (see {@link BenchmarkBackends}), duration in seconds and number of threads.
+ */
+public final class CredentialsAgentSoak {
+
+    private CredentialsAgentSoak() {}
+
+    /**
+     * Run the soak test.
+     * @param args backend, seconds, threads
+     * @throws Exception if the backend cannot be set up
+     */
+    public static void main(String[] args) throws Exception {
+        String backend = args.length > 0 ? args[0] : "memory";
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 30;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        BenchmarkBackends.initJosmConfig();
+        Path tempDir = Files.createTempDirectory("npm-soak");
+        try {
+            KeyringProvider provider = BenchmarkBackends.create(backend, tempDir);
+            NPMCredentialsAgent agent = new NPMCredentialsAgent(NPMType.PLAIN, provider);
+            Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Random random = new Random(t);
+                results.add(pool.submit(() -> {
+                    while (System.nanoTime() < deadline) {
+                        String host = "tile" + random.nextInt(20) + ".soak.example.com";
+                        String outcome;
+                        try {
+                            int action = random.nextInt(10);
+                            if (action == 0) {
+                                agent.store(RequestorType.SERVER, host,
+                                        new PasswordAuthentication("user", host.toCharArray()));
+                                outcome = "store";
+                            } else {
+                                if (action < 3) {
+                                    // like rejected credentials, forces the next lookups to the backend
+                                    agent.purgeCredentialsCache(RequestorType.SERVER);
+                                }
+                                PasswordAuthentication auth = agent.lookup(RequestorType.SERVER, host);
+                                outcome = auth.getUserName().isEmpty() ? "lookup miss" : "lookup hit";
+                            }
+                        } catch (CredentialsAgentException | RuntimeException e) {
+                            outcome = (e.getCause() != null ? e.getCause() : e).getClass().getSimpleName();
+                        }
+                        outcomes.computeIfAbsent(outcome, k -> new LongAdder()).increment();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : results) {
+                f.get();
+            }
+            pool.shutdown();
+            boolean flushed = agent.flush(TimeUnit.SECONDS.toMillis(30));
+            agent.close();
+            System.out.println("Outcomes after " + seconds + " s with " + threads + " threads:");
+            new TreeMap<>(outcomes).forEach((k, v) -> System.out.println(String.format("  %-24s %d", k, v.sum())));
+            if (provider instanceof FaultInjectingKeyringProvider) {
+                FaultInjectingKeyringProvider faults = (FaultInjectingKeyringProvider) provider;
+                System.out.println("Injected: " + faults.getErrors() + " errors, " + faults.getTimeouts()
+                        + " timeouts, " + faults.getHangs() + " hangs");
+                faults.release();
+            }
+            System.out.println("Pending writes flushed: " + flushed);
+            KeyringMetrics.forBackend(NPMType.PLAIN.toPrefString()).snapshot().forEach(System.out::println);
+        } finally {
+            BenchmarkBackends.deleteRecursively(tempDir);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,273 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+import org.netbeans.modules.keyring.kde.KWalletProvider;
+
+/**
+ * A kwalletd stand-in for {@link KWalletProvider}, without KDE or a D-Bus session.
+ * <p>
+ * {@link KWalletProvider} talks to kwalletd through the {@code qdbus} command line tool, so the
+ * fake is a {@code qdbus} shell script which answers its calls, keeping the wallet entries as
+ * files in a directory. The script reads its behaviour from control files on every call, so a
+ * test can change it while the provider is in use, e.g. lock the wallet or stop the daemon in
+ * the middle of a benchmark:
+ * <ul>
+ * <li>the served service, {@code org.kde.kwalletd6}, {@code org.kde.kwalletd5} or the legacy
+ *     {@code org.kde.kwalletd}; calls to the other ones fail like calls to a missing service</li>
+ * <li>whether the daemon runs at all</li>
+ * <li>whether the wallet is locked, and whether opening it is accepted, declined or times out,
+ *     like the user answering the password prompt</li>
+ * <li>latency and a rate of failing calls</li>
+ * </ul>
+ * Every call is logged, so that tests can count e.g. the password prompts with {@link #getCalls(String)}.
+ * <p>
+ * The behaviour can also be given as a specification like {@code version=5;locked;unlock=decline;latency=5ms;fail=0.01},
+ * which {@link BenchmarkBackends} reads from the system property {@value #PROPERTY}.
+ */
+public final class FakeKwalletd {
+
+    /** System property with the specification used by {@link BenchmarkBackends} */
+    public static final String PROPERTY = "npm.kwalletd";
+
+    /** How the fake answers a request to open the locked wallet */
+    public enum Unlock {
+        /** the user enters the wallet password */
+        ACCEPT,
+        /** the user cancels the password prompt */
+        DECLINE,
+        /** nobody answers the password prompt, the D-Bus call times out */
+        TIMEOUT
+    }
+
+    private static final String SCRIPT = "#!/bin/sh\n"
+            + "dir='%s'\n"
+            + "ctl() { cat \"$dir/ctl/$1\" 2>/dev/null; }\n"
+            + "service=\"$1\"\n"
+            + "method=\"${3#org.kde.KWallet.}\"\n"
+            + "shift 3\n"
+            + "echo \"$method\" >> \"$dir/calls\"\n"
+            + "latency=$(ctl latency)\n"
+            + "[ -n \"$latency\" ] && sleep \"$latency\"\n"
+            + "version=$(ctl version)\n"
+            + "if [ -f \"$dir/ctl/stopped\" ] || [ \"$service\" != \"org.kde.kwalletd${version#0}\" ]; then\n"
+            + "  echo \"Service '$service' does not exist.\" >&2; exit 1\n"
+            + "fi\n"
+            + "fail=$(ctl fail)\n"
+            + "if [ \"${fail:-0}\" -gt 0 ] && [ $(( $(od -An -N2 -tu2 /dev/urandom) %% 10000 )) -lt \"$fail\" ]; then\n"
+            + "  echo \"Error: org.freedesktop.DBus.Error.NoReply\" >&2; exit 1\n"
+            + "fi\n"
+            + "[ -f \"$dir/ctl/locked\" ] && locked=1\n"
+            + "name() { printf %%s \"$1\" | od -An -tx1 | tr -d ' \\n'; }\n"
+            + "case \"$method\" in\n"
+            + "  isEnabled) echo true ;;\n"
+            + "  isOpen) if [ -n \"$locked\" ]; then echo false; else echo true; fi ;;\n"
+            + "  localWallet) echo kdewallet ;;\n"
+            + "  open)\n"
+            + "    if [ -z \"$locked\" ]; then echo 1; exit 0; fi\n"
+            + "    case \"$(ctl unlock)\" in\n"
+            + "      decline) echo -1 ;;\n"
+            + "      timeout) echo \"Error: org.freedesktop.DBus.Error.NoReply\" >&2; exit 2 ;;\n"
+            + "      *) rm -f \"$dir/ctl/locked\"; echo 1 ;;\n"
+            + "    esac ;;\n"
+            + "  readPassword)\n"
+            + "    f=\"$dir/wallet/$(name \"$3\")\"; [ -z \"$locked\" ] && [ -f \"$f.val\" ] && cat \"$f.val\"; true ;;\n"
+            + "  writePassword)\n"
+            + "    [ -n \"$locked\" ] && { echo -1; exit 0; }\n"
+            + "    f=\"$dir/wallet/$(name \"$3\")\"; printf %%s \"$3\" > \"$f.key\"; printf %%s \"$4\" > \"$f.val\"; echo 0 ;;\n"
+            + "  removeEntry)\n"
+            + "    [ -n \"$locked\" ] && { echo -1; exit 0; }\n"
+            + "    f=\"$dir/wallet/$(name \"$3\")\"; rm -f \"$f.key\" \"$f.val\"; echo 0 ;;\n"
+            + "  readPasswordList)\n"
+            + "    [ -n \"$locked\" ] && exit 0\n"
+            + "    for k in \"$dir\"/wallet/*.key; do\n"
+            + "      [ -f \"$k\" ] || continue\n"
+            + "      key=$(cat \"$k\")\n"
+            + "      case \"$key\" in $3) printf '%%s: %%s\\n' \"$key\" \"$(cat \"${k%%.key}.val\")\" ;; esac\n"
+            + "    done ;;\n"
+            + "  *) echo \"Method $method not found\" >&2; exit 1 ;;\n"
+            + "esac\n";
+
+    private final Path dir;
+    private final Path qdbus;
+
+    /**
+     * Create a fake kwalletd serving {@code org.kde.kwalletd6} with an open, empty wallet.
+     * @param dir the directory for the script, its control files and the wallet entries
+     * @throws IOException if the files cannot be written
+     */
+    public FakeKwalletd(Path dir) throws IOException {
+        this.dir = dir.toAbsolutePath();
+        Files.createDirectories(this.dir.resolve("ctl"));
+        Files.createDirectories(this.dir.resolve("wallet"));
+        qdbus = this.dir.resolve("qdbus");
+        Files.write(qdbus, String.format(Locale.ROOT, SCRIPT, this.dir).getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(qdbus, PosixFilePermissions.fromString("rwx------"));
+        setVersion(6);
+    }
+
+    /**
+     * Create a fake kwalletd configured by a specification. Keys, separated by {@code ;}:
+     * {@code version=6|5|0}, {@code stopped}, {@code locked}, {@code unlock=accept|decline|timeout},
+     * {@code latency=<d>} with the units {@code ms} or {@code s}, and {@code fail=<p>}.
+     * @param dir the directory for the script, its control files and the wallet entries
+     * @param spec the specification, may be empty
+     * @return the fake kwalletd
+     * @throws IOException if the files cannot be written
+     * @throws IllegalArgumentException if the specification cannot be parsed
+     */
+    public static FakeKwalletd create(Path dir, String spec) throws IOException {
+        FakeKwalletd fake = new FakeKwalletd(dir);
+        for (String option : spec.split(";")) {
+            String[] kv = option.trim().split("=", 2);
+            switch (kv[0]) {
+                case "":
+                    break;
+                case "version":
+                    fake.setVersion(Integer.parseInt(kv[1]));
+                    break;
+                case "stopped":
+                    fake.setRunning(false);
+                    break;
+                case "locked":
+                    fake.setLocked(true);
+                    break;
+                case "unlock":
+                    fake.setUnlock(Unlock.valueOf(kv[1].toUpperCase(Locale.ROOT)));
+                    break;
+                case "latency":
+                    fake.setLatency(FaultInjectingKeyringProvider.parseDuration(kv[1]));
+                    break;
+                case "fail":
+                    fake.setFailureRate(Double.parseDouble(kv[1]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown kwalletd option: " + option);
+            }
+        }
+        return fake;
+    }
+
+    /**
+     * Point {@link KWalletProvider} to this fake. Has to be called before the provider class is loaded.
+     * @return this
+     */
+    public FakeKwalletd install() {
+        System.setProperty("netbeans.keyring.kwallet.qdbus", qdbus.toString());
+        return this;
+    }
+
+    /**
+     * Get the {@code qdbus} stand-in.
+     * @return the script
+     */
+    public Path getQdbus() {
+        return qdbus;
+    }
+
+    /**
+     * Set the KDE version of the served daemon.
+     * @param version 6 or 5, or 0 for the service name of KDE 4
+     * @return this
+     * @throws IOException if the control file cannot be written
+     */
+    public FakeKwalletd setVersion(int version) throws IOException {
+        if (version != 0 && version != 5 && version != 6) {
+            throw new IllegalArgumentException("Unsupported KDE version: " + version);
+        }
+        return control("version", Integer.toString(version));
+    }
+
+    /**
+     * Start or stop the daemon. While it is stopped, every call fails like a call to a missing service.
+     * @param running true to let the daemon answer
+     * @return this
+     * @throws IOException if the control file cannot be written
+     */
+    public FakeKwalletd setRunning(boolean running) throws IOException {
+        return control("stopped", running ? null : "");
+    }
+
+    /**
+     * Lock or unlock the wallet. While it is locked, reads find nothing and writes fail until it is opened.
+     * @param locked true to lock the wallet
+     * @return this
+     * @throws IOException if the control file cannot be written
+     */
+    public FakeKwalletd setLocked(boolean locked) throws IOException {
+        return control("locked", locked ? "" : null);
+    }
+
+    /**
+     * Set how a request to open the locked wallet is answered. The default is {@link Unlock#ACCEPT}.
+     * @param unlock the answer
+     * @return this
+     * @throws IOException if the control file cannot be written
+     */
+    public FakeKwalletd setUnlock(Unlock unlock) throws IOException {
+        return control("unlock", unlock.name().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Set the latency of every call, on top of the start of the script.
+     * @param millis the latency in milliseconds
+     * @return this
+     * @throws IOException if the control file cannot be written
+     */
+    public FakeKwalletd setLatency(long millis) throws IOException {
+        return control("latency", millis > 0 ? String.format(Locale.ROOT, "%.3f", millis / 1000.0) : null);
+    }
+
+    /**
+     * Set the rate of calls which fail with a D-Bus error.
+     * @param rate the probability of a failure, 0 to 1
+     * @return this
+     * @throws IOException if the control file cannot be written
+     */
+    public FakeKwalletd setFailureRate(double rate) throws IOException {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("Failure rate must be between 0 and 1: " + rate);
+        }
+        return control("fail", rate > 0 ? Long.toString(Math.round(rate * 10_000)) : null);
+    }
+
+    /**
+     * Get the number of calls of a method so far, including failed ones and calls to missing services.
+     * @param method the method name, e.g. {@code open}
+     * @return the number of calls
+     * @throws IOException if the call log cannot be read
+     */
+    public long getCalls(String method) throws IOException {
+        try (Stream<String> lines = Files.lines(dir.resolve("calls"), StandardCharsets.UTF_8)) {
+            return lines.filter(method::equals).count();
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Write or delete a control file, replacing it atomically so a running call never sees it half written.
+     * @param name the file name
+     * @param value the content, or null to delete the file
+     */
+    private FakeKwalletd control(String name, String value) throws IOException {
+        Path file = dir.resolve("ctl").resolve(name);
+        if (value == null) {
+            Files.deleteIfExists(file);
+        } else {
+            Path tmp = Files.createTempFile(dir.resolve("ctl"), name, ".tmp");
+            Files.write(tmp, value.getBytes(StandardCharsets.US_ASCII));
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return this;
+    }
+}
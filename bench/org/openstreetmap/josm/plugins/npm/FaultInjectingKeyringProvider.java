@@ -0,0 +1,282 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.netbeans.spi.keyring.KeyringProvider;
+import org.openstreetmap.josm.plugins.npm.KeyringMetrics.Operation;
+
+/**
+ * Decorates a {@link KeyringProvider} with injected latency, errors, timeouts and hangs,
+ * to benchmark and soak-test the layers above it against a degraded backend.
+ * <p>
+ * The faults are configured per {@link Operation} with a specification like
+ * <pre>seed=42;*:latency=1ms..20ms;read:slow=0.05@2s;save:error=0.01;*:timeout=0.002@5s;delete:hang=0.001</pre>
+ * Rules are separated by {@code ;}, {@code *} applies to all operations, later rules win.
+ * <ul>
+ * <li>{@code latency=<d>} fixed, {@code latency=<min>..<max>} uniform or {@code latency=exp:<mean>}
+ *     exponentially distributed latency added to every call</li>
+ * <li>{@code slow=<p>@<d>} additional delay with probability p, like a wallet waiting to be unlocked</li>
+ * <li>{@code error=<p>} fail immediately with probability p, like a D-Bus error</li>
+ * <li>{@code timeout=<p>@<d>} wait, then fail with probability p, like a D-Bus call timing out</li>
+ * <li>{@code hang=<p>} block until {@link #release()} or interrupt with probability p</li>
+ * </ul>
+ * Durations take the units {@code ms} and {@code s}. All random draws come from one
+ * {@link Random} seeded with {@code seed} (default 0), so a single-threaded caller,
+ * like the keyring executor, sees the same faults on every run.
+ */
+public class FaultInjectingKeyringProvider implements KeyringProvider {
+
+    /** System property with the fault specification used by {@link BenchmarkBackends} */
+    public static final String PROPERTY = "npm.faults";
+
+    /** The faults of one operation */
+    private static final class Faults {
+        long minLatency;
+        long maxLatency;
+        long meanLatency;
+        double slowRate;
+        long slowDelay;
+        double errorRate;
+        double timeoutRate;
+        long timeoutDelay;
+        double hangRate;
+    }
+
+    /** Thrown for injected errors and timeouts */
+    public static class InjectedFault extends IllegalStateException {
+        InjectedFault(String message) {
+            super(message);
+        }
+    }
+
+    private final KeyringProvider provider;
+    private final Map<Operation, Faults> faults = new EnumMap<>(Operation.class);
+    private final Random random;
+    private volatile CountDownLatch hung = new CountDownLatch(1);
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder hangs = new LongAdder();
+
+    /**
+     * Create a new {@link FaultInjectingKeyringProvider}
+     * @param provider the provider to decorate
+     * @param spec the fault specification, see class description
+     * @throws IllegalArgumentException if the specification cannot be parsed
+     */
+    public FaultInjectingKeyringProvider(KeyringProvider provider, String spec) {
+        this.provider = provider;
+        long seed = 0;
+        for (Operation op : Operation.values()) {
+            faults.put(op, new Faults());
+        }
+        for (String rule : spec.split(";")) {
+            rule = rule.trim();
+            if (rule.isEmpty()) {
+                continue;
+            }
+            if (rule.startsWith("seed=")) {
+                seed = Long.parseLong(rule.substring("seed=".length()));
+                continue;
+            }
+            int colon = rule.indexOf(':');
+            int eq = rule.indexOf('=');
+            if (colon < 0 || eq < colon) {
+                throw new IllegalArgumentException("Expected <operation>:<fault>=<value>: " + rule);
+            }
+            String op = rule.substring(0, colon);
+            String fault = rule.substring(colon + 1, eq);
+            String value = rule.substring(eq + 1);
+            if ("*".equals(op)) {
+                for (Faults f : faults.values()) {
+                    apply(f, fault, value);
+                }
+            } else {
+                apply(faults.get(Operation.valueOf(op.toUpperCase(Locale.ENGLISH))), fault, value);
+            }
+        }
+        this.random = new Random(seed);
+    }
+
+    private static void apply(Faults f, String fault, String value) {
+        switch (fault) {
+            case "latency":
+                if (value.startsWith("exp:")) {
+                    f.meanLatency = parseDuration(value.substring(4));
+                    f.minLatency = 0;
+                    f.maxLatency = 0;
+                } else if (value.contains("..")) {
+                    f.minLatency = parseDuration(value.substring(0, value.indexOf("..")));
+                    f.maxLatency = parseDuration(value.substring(value.indexOf("..") + 2));
+                    f.meanLatency = 0;
+                } else {
+                    f.minLatency = parseDuration(value);
+                    f.maxLatency = f.minLatency;
+                    f.meanLatency = 0;
+                }
+                break;
+            case "slow":
+                f.slowRate = Double.parseDouble(value.substring(0, value.indexOf('@')));
+                f.slowDelay = parseDuration(value.substring(value.indexOf('@') + 1));
+                break;
+            case "error":
+                f.errorRate = Double.parseDouble(value);
+                break;
+            case "timeout":
+                f.timeoutRate = Double.parseDouble(value.substring(0, value.indexOf('@')));
+                f.timeoutDelay = parseDuration(value.substring(value.indexOf('@') + 1));
+                break;
+            case "hang":
+                f.hangRate = Double.parseDouble(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown fault " + fault);
+        }
+    }
+
+    static long parseDuration(String value) {
+        if (value.endsWith("ms")) {
+            return Long.parseLong(value.substring(0, value.length() - 2));
+        } else if (value.endsWith("s")) {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value.substring(0, value.length() - 1)));
+        }
+        throw new IllegalArgumentException("Duration needs a unit (ms or s): " + value);
+    }
+
+    /**
+     * Wrap a provider if the system property {@value #PROPERTY} is set.
+     * @param provider the provider
+     * @return the decorated provider, or {@code provider} if no faults are configured
+     */
+    public static KeyringProvider fromSystemProperty(KeyringProvider provider) {
+        String spec = System.getProperty(PROPERTY);
+        return spec == null || spec.isEmpty() ? provider : new FaultInjectingKeyringProvider(provider, spec);
+    }
+
+    /**
+     * Let all calls hanging so far continue; calls which hang later wait for the next release.
+     */
+    public void release() {
+        CountDownLatch latch = hung;
+        hung = new CountDownLatch(1);
+        latch.countDown();
+    }
+
+    /**
+     * Get the number of injected errors.
+     * @return the number of errors
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * Get the number of injected timeouts.
+     * @return the number of timeouts
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Get the number of injected hangs.
+     * @return the number of hangs
+     */
+    public long getHangs() {
+        return hangs.sum();
+    }
+
+    private void inject(Operation operation) {
+        Faults f = faults.get(operation);
+        long delay;
+        boolean error;
+        boolean timeout;
+        boolean hang;
+        synchronized (random) {
+            // always draw the same number of values, so that the sequence does not depend on the outcome
+            double latency = random.nextDouble();
+            double slow = random.nextDouble();
+            error = random.nextDouble() < f.errorRate;
+            timeout = random.nextDouble() < f.timeoutRate;
+            hang = random.nextDouble() < f.hangRate;
+            if (f.meanLatency > 0) {
+                delay = (long) (-f.meanLatency * Math.log(1 - latency));
+            } else {
+                delay = f.minLatency + (long) (latency * (f.maxLatency - f.minLatency));
+            }
+            if (slow < f.slowRate) {
+                delay += f.slowDelay;
+            }
+        }
+        try {
+            if (hang) {
+                hangs.increment();
+                hung.await();
+            }
+            if (timeout) {
+                timeouts.increment();
+                Thread.sleep(delay + f.timeoutDelay);
+                throw new InjectedFault("Injected timeout in " + operation);
+            }
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InjectedFault("Interrupted in " + operation);
+        }
+        if (error) {
+            errors.increment();
+            throw new InjectedFault("Injected error in " + operation);
+        }
+    }
+
+    @Override
+    public boolean enabled() {
+        inject(Operation.ENABLED);
+        return provider.enabled();
+    }
+
+    @Override
+    public char[] read(String key) {
+        inject(Operation.READ);
+        return provider.read(key);
+    }
+
+    @Override
+    public Map<String, char[]> readAll(Collection<String> keys) {
+        inject(Operation.READ_ALL);
+        return provider.readAll(keys);
+    }
+
+    @Override
+    public void save(String key, char[] password, String description) {
+        inject(Operation.SAVE);
+        provider.save(key, password, description);
+    }
+
+    @Override
+    public void saveAll(Map<String, char[]> passwords, Map<String, String> descriptions) {
+        inject(Operation.SAVE_ALL);
+        provider.saveAll(passwords, descriptions);
+    }
+
+    @Override
+    public void delete(String key) {
+        inject(Operation.DELETE);
+        provider.delete(key);
+    }
+
+    @Override
+    public void deleteAll(Collection<String> keys) {
+        inject(Operation.DELETE_ALL);
+        provider.deleteAll(keys);
+    }
+}
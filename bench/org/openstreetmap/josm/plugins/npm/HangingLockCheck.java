@@ -0,0 +1,137 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.netbeans.spi.keyring.UnlockableKeyringProvider;
+
+/**
+ * Checks that callers above {@link UnlockingKeyringProvider} are not taken down by a keyring whose
+ * {@code isLocked} hangs, e.g. a D-Bus service which never answers: every blocking caller has to fail
+ * with a {@link KeyringExecutor.KeyringBusyException} within the deadline of the {@link KeyringExecutor},
+ * callers arriving while the check still hangs have to fail at once, and the keyring has to be usable
+ * again once the check returns. Run it with
+ * <pre>mvn -P benchmark compile exec:exec -Dbench.main=org.openstreetmap.josm.plugins.npm.HangingLockCheck
+ *     -Dbench.args="500 8"</pre>
+ * Arguments: executor timeout in milliseconds and number of threads.
+ * The process exits with status 1 if any check fails.
+ */
+public final class HangingLockCheck {
+
+    /** the time a caller may take beyond the deadline, for scheduling */
+    private static final long SLACK_MILLIS = 250;
+
+    /** A keyring whose lock check blocks until released */
+    private static final class HangingKeyring extends MemoryKeyringProvider implements UnlockableKeyringProvider {
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        @Override
+        public boolean isLocked() {
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        @Override
+        public boolean unlock() {
+            return true;
+        }
+    }
+
+    private HangingLockCheck() {}
+
+    /**
+     * Run the check.
+     * @param args executor timeout in milliseconds, threads
+     * @throws Exception if a caller thread fails unexpectedly
+     */
+    public static void main(String[] args) throws Exception {
+        long timeout = args.length > 0 ? Long.parseLong(args[0]) : 500;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        HangingKeyring keyring = new HangingKeyring();
+        keyring.save("JOSM.npm-hang.key", "value".toCharArray(), null);
+        KeyringExecutor executor = new KeyringExecutor(keyring, timeout);
+        UnlockingKeyringProvider provider = new UnlockingKeyringProvider(keyring, executor, 60_000, 300_000);
+        List<String> failures = new ArrayList<>();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(pool.submit(() -> timeBusyRead(provider)));
+            }
+            long worst = 0;
+            for (Future<Long> f : results) {
+                long millis = f.get();
+                if (millis < 0) {
+                    failures.add("a caller got an answer from a hanging keyring");
+                }
+                worst = Math.max(worst, millis);
+            }
+            System.out.println(String.format(Locale.ENGLISH, "%d callers failed after at most %d ms (deadline %d ms)",
+                    threads, worst, timeout));
+            check(failures, "callers fail within the deadline", worst <= timeout + SLACK_MILLIS);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // the check is still hanging, so the executor refuses new calls right away
+        long late = timeBusyRead(provider);
+        System.out.println(String.format(Locale.ENGLISH, "caller arriving later failed after %d ms", late));
+        check(failures, "later callers fail at once", late >= 0 && late <= SLACK_MILLIS);
+
+        keyring.released.countDown();
+        check(failures, "keyring is usable once the check returns", readsAgain(provider, timeout));
+
+        System.out.println(failures.isEmpty() ? "passed" : "FAILED " + failures);
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Read through the provider and expect it to be refused.
+     * @return the time in milliseconds until the read failed with a busy exception, -1 if it succeeded
+     */
+    private static long timeBusyRead(UnlockingKeyringProvider provider) {
+        long start = System.nanoTime();
+        try {
+            provider.read("JOSM.npm-hang.key");
+            return -1;
+        } catch (KeyringExecutor.KeyringBusyException e) {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Read through the provider until the worker has finished the hung check.
+     * @return true if the read succeeded within the timeout
+     */
+    private static boolean readsAgain(UnlockingKeyringProvider provider, long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true) {
+            try {
+                return "value".equals(new String(provider.read("JOSM.npm-hang.key")));
+            } catch (KeyringExecutor.KeyringBusyException e) {
+                if (System.nanoTime() - deadline >= 0) {
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static void check(List<String> failures, String name, boolean ok) {
+        if (!ok) {
+            failures.add(name);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.netbeans.spi.keyring.KeyringProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency and throughput of single and batched {@link KeyringProvider} operations.
+ * Run with {@code -prof gc} (the default of the benchmark profile) for the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyringProviderBenchmark {
+
+    private static final String USERNAME_KEY = "JOSM.npm-benchmark.username";
+    private static final String PASSWORD_KEY = "JOSM.npm-benchmark.password";
+    private static final String DELETE_KEY = "JOSM.npm-benchmark.delete";
+    private static final List<String> KEYS = Arrays.asList(USERNAME_KEY, PASSWORD_KEY);
+    private static final char[] USERNAME = "benchmark-user".toCharArray();
+    private static final char[] PASSWORD = "correct horse battery staple".toCharArray();
+
+    @Param({"memory", "fallback", "kwallet", "gnome"})
+    public String backend;
+
+    private Path tempDir;
+    private KeyringProvider provider;
+
+    /**
+     * A key which exists before every invocation of a delete benchmark.
+     */
+    @State(Scope.Thread)
+    public static class DeleteState {
+        @Setup(Level.Invocation)
+        public void saveKeys(KeyringProviderBenchmark benchmark) {
+            benchmark.provider.save(DELETE_KEY, PASSWORD.clone(), null);
+            benchmark.provider.saveAll(entries(), null);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        tempDir = Files.createTempDirectory("npm-benchmark");
+        provider = BenchmarkBackends.create(backend, tempDir);
+        provider.saveAll(entries(), null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        provider.deleteAll(Arrays.asList(USERNAME_KEY, PASSWORD_KEY, DELETE_KEY));
+        BenchmarkBackends.deleteRecursively(tempDir);
+    }
+
+    private static Map<String, char[]> entries() {
+        Map<String, char[]> entries = new LinkedHashMap<>();
+        entries.put(USERNAME_KEY, USERNAME.clone());
+        entries.put(PASSWORD_KEY, PASSWORD.clone());
+        return entries;
+    }
+
+    @Benchmark
+    public char[] read() {
+        return provider.read(PASSWORD_KEY);
+    }
+
+    @Benchmark
+    public Map<String, char[]> readAll() {
+        return provider.readAll(KEYS);
+    }
+
+    @Benchmark
+    public void save() {
+        provider.save(PASSWORD_KEY, PASSWORD.clone(), "JOSM benchmark");
+    }
+
+    @Benchmark
+    public void saveAll() {
+        provider.saveAll(entries(), null);
+    }
+
+    @Benchmark
+    public void delete(DeleteState state) {
+        provider.delete(DELETE_KEY);
+    }
+
+    @Benchmark
+    public void deleteAll(DeleteState state) {
+        provider.deleteAll(KEYS);
+    }
+}
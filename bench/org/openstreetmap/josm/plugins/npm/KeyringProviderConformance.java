@@ -0,0 +1,200 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.netbeans.spi.keyring.KeyringProvider;
+
+/**
+ * Checks that a {@link KeyringProvider} has the semantics of the reference
+ * {@link MemoryKeyringProvider}, and runs a throughput and concurrency smoke test.
+ * <p>
+ * Every provider, including new or optimized ones, has to pass this kit. Run it with
+ * <pre>mvn -P benchmark compile exec:exec -Dbench.main=org.openstreetmap.josm.plugins.npm.KeyringProviderConformance
+ *     -Dbench.args="memory fallback kwallet"</pre>
+ * The process exits with status 1 if any check fails.
+ */
+public final class KeyringProviderConformance {
+
+    private static final String PREFIX = "JOSM.npm-conformance.";
+
+    private final KeyringProvider provider;
+    private final List<String> failures = new ArrayList<>();
+
+    private KeyringProviderConformance(KeyringProvider provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Run all correctness checks.
+     * @param provider an enabled provider; entries with the prefix {@code JOSM.npm-conformance.} will be overwritten
+     * @return the failed checks, empty if the provider conforms
+     */
+    public static List<String> check(KeyringProvider provider) {
+        KeyringProviderConformance kit = new KeyringProviderConformance(provider);
+        try {
+            kit.run();
+        } finally {
+            kit.cleanUp();
+        }
+        return kit.failures;
+    }
+
+    private void run() {
+        check("missing key reads as null", provider.read(PREFIX + "missing") == null);
+
+        provider.save(PREFIX + "a", "secret".toCharArray(), "conformance");
+        check("saved value reads back", equal(provider.read(PREFIX + "a"), "secret"));
+
+        provider.save(PREFIX + "a", "other".toCharArray(), "conformance");
+        check("save overwrites", equal(provider.read(PREFIX + "a"), "other"));
+
+        provider.delete(PREFIX + "a");
+        check("deleted key reads as null", provider.read(PREFIX + "a") == null);
+
+        try {
+            provider.delete(PREFIX + "missing");
+            check("deleting a missing key does nothing", provider.read(PREFIX + "missing") == null);
+        } catch (RuntimeException e) {
+            check("deleting a missing key does nothing (" + e + ")", false);
+        }
+
+        provider.save(PREFIX + "empty", new char[0], null);
+        char[] empty = provider.read(PREFIX + "empty");
+        // some native keyrings cannot tell an empty value from a missing one, the agent treats both alike
+        check("empty value reads as empty or null", empty == null || empty.length == 0);
+
+        char[] password = "wipe-me".toCharArray();
+        provider.save(PREFIX + "wipe", password, null);
+        Arrays.fill(password, '\0');
+        check("nulling out the saved array keeps the value", equal(provider.read(PREFIX + "wipe"), "wipe-me"));
+        char[] read = provider.read(PREFIX + "wipe");
+        if (read != null) {
+            Arrays.fill(read, '\0');
+        }
+        check("nulling out the read array keeps the value", equal(provider.read(PREFIX + "wipe"), "wipe-me"));
+
+        String special = "p\u00e4ss: w\u00f6rd\nwith \u20ac and \ud83d\udd11";
+        provider.save(PREFIX + "special", special.toCharArray(), null);
+        check("non-ASCII, colon and newline survive", equal(provider.read(PREFIX + "special"), special));
+
+        char[] large = new char[4096];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (char) ('a' + i % 26);
+        }
+        provider.save(PREFIX + "large", large, null);
+        check("4 KB value survives", Arrays.equals(provider.read(PREFIX + "large"), large));
+
+        provider.save(PREFIX + "shared", "1".toCharArray(), null);
+        provider.save(PREFIX + "shared.longer", "2".toCharArray(), null);
+        check("keys sharing a prefix are separate", equal(provider.read(PREFIX + "shared"), "1")
+                && equal(provider.read(PREFIX + "shared.longer"), "2"));
+
+        Map<String, char[]> batch = new LinkedHashMap<>();
+        batch.put(PREFIX + "batch.username", "user".toCharArray());
+        batch.put(PREFIX + "batch.password", "pass".toCharArray());
+        provider.saveAll(batch, Collections.singletonMap(PREFIX + "batch.username", "conformance"));
+        check("saveAll is like save", equal(provider.read(PREFIX + "batch.username"), "user")
+                && equal(provider.read(PREFIX + "batch.password"), "pass"));
+
+        Map<String, char[]> all = provider.readAll(Arrays.asList(
+                PREFIX + "batch.username", PREFIX + "batch.password", PREFIX + "missing"));
+        check("readAll returns exactly the found keys", all.size() == 2
+                && equal(all.get(PREFIX + "batch.username"), "user")
+                && equal(all.get(PREFIX + "batch.password"), "pass"));
+        check("readAll of nothing is empty", provider.readAll(Collections.emptyList()).isEmpty());
+
+        provider.deleteAll(Arrays.asList(PREFIX + "batch.username", PREFIX + "batch.password", PREFIX + "missing"));
+        check("deleteAll is like delete", provider.read(PREFIX + "batch.username") == null
+                && provider.read(PREFIX + "batch.password") == null);
+    }
+
+    private void cleanUp() {
+        provider.deleteAll(Arrays.asList(PREFIX + "a", PREFIX + "empty", PREFIX + "wipe", PREFIX + "special",
+                PREFIX + "large", PREFIX + "shared", PREFIX + "shared.longer",
+                PREFIX + "batch.username", PREFIX + "batch.password"));
+    }
+
+    private void check(String name, boolean ok) {
+        if (!ok) {
+            failures.add(name);
+        }
+    }
+
+    private static boolean equal(char[] actual, String expected) {
+        return actual != null && expected.equals(new String(actual));
+    }
+
+    /**
+     * Let several threads save, read and delete their own keys at the same time, through a
+     * {@link KeyringExecutor} as in production, and check that nobody sees foreign or lost values.
+     * @param provider an enabled provider
+     * @param threads number of concurrent callers
+     * @param iterations save/read/delete rounds per caller
+     * @return the operations per second
+     * @throws Exception if a caller saw a wrong value
+     */
+    public static double concurrencySmoke(KeyringProvider provider, int threads, int iterations) throws Exception {
+        KeyringProvider executor = new KeyringExecutor(provider, TimeUnit.MINUTES.toMillis(1));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                String key = PREFIX + "thread" + t;
+                results.add(pool.submit(() -> {
+                    for (int i = 0; i < iterations; i++) {
+                        String value = key + "#" + i;
+                        executor.save(key, value.toCharArray(), null);
+                        if (!equal(executor.read(key), value)) {
+                            throw new AssertionError(key + " did not read back " + value);
+                        }
+                        executor.delete(key);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : results) {
+                f.get();
+            }
+            return threads * iterations * 3 / ((System.nanoTime() - start) / 1e9);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Check the given backends, see {@link BenchmarkBackends}.
+     * @param args backend names, {@code memory} for the reference provider
+     * @throws Exception if a backend cannot be set up
+     */
+    public static void main(String[] args) throws Exception {
+        boolean ok = true;
+        for (String name : args.length == 0 ? new String[] {"memory", "fallback", "kwallet"} : args) {
+            Path tempDir = Files.createTempDirectory("npm-conformance");
+            try {
+                KeyringProvider provider = BenchmarkBackends.create(name, tempDir);
+                List<String> failed = check(provider);
+                double throughput = concurrencySmoke(provider, 8, 20);
+                System.out.println(String.format(Locale.ENGLISH, "%-10s %s, %.0f ops/s with 8 threads", name,
+                        failed.isEmpty() ? "conforms" : "FAILED " + failed, throughput));
+                ok &= failed.isEmpty();
+            } finally {
+                BenchmarkBackends.deleteRecursively(tempDir);
+            }
+        }
+        System.exit(ok ? 0 : 1);
+    }
+}
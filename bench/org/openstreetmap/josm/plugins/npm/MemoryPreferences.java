@@ -0,0 +1,35 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.netbeans.modules.keyring.fallback.FallbackProvider;
+
+/**
+ * In-memory preferences store for the {@link FallbackProvider}.
+ */
+public class MemoryPreferences implements FallbackProvider.IPreferences {
+
+    private final Map<String, byte[]> values = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] getByteArray(String key, byte[] def) {
+        byte[] value = values.get(key);
+        return value == null ? def : value.clone();
+    }
+
+    @Override
+    public void putByteArray(String key, byte[] val) {
+        if (val == null) {
+            values.remove(key);
+        } else {
+            values.put(key, val.clone());
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        values.remove(key);
+    }
+}
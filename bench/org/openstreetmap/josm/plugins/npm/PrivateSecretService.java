@@ -0,0 +1,241 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.netbeans.modules.keyring.gnome.GnomeProvider;
+
+/**
+ * A Secret Service of its own: a private D-Bus session bus with a {@code gnome-keyring-daemon} whose
+ * keyrings live in a temporary home directory. Lets {@link GnomeProvider} be benchmarked and tested
+ * without a desktop session, and without touching the keyrings of the user.
+ * <p>
+ * {@link GnomeProvider} finds the daemon through the environment, which a running JVM cannot change,
+ * so the code under test runs in a child JVM:
+ * <pre>mvn -P benchmark compile exec:exec -Dbench.main=org.openstreetmap.josm.plugins.npm.PrivateSecretService \
+ *     -Dbench.args="org.openjdk.jmh.Main KeyringProviderBenchmark -p backend=gnome"</pre>
+ * With {@code --locked} as first argument, the login keyring is created and then locked by restarting
+ * the daemon without its password, so that every access needs an unlock prompt nobody answers.
+ * <p>
+ * Latency and errors of the keyring are injected with {@link FaultInjectingKeyringProvider};
+ * a crash of the daemon with {@link #stopKeyring()}.
+ */
+public final class PrivateSecretService implements AutoCloseable {
+
+    private static final String PASSWORD = "npm-bench";
+
+    private final Path dir;
+    private final Process bus;
+    private final String busAddress;
+    private Process keyring;
+    private String keyringControl;
+
+    /**
+     * Start a private session bus and a keyring daemon with an unlocked login keyring.
+     * @param dir an empty directory for the bus socket and the home directory of the daemon
+     * @throws IOException if a daemon cannot be started
+     */
+    public PrivateSecretService(Path dir) throws IOException {
+        this.dir = dir.toAbsolutePath();
+        Files.createDirectories(this.dir.resolve("home"));
+        Files.createDirectories(this.dir.resolve("run"), PosixFilePermissions.asFileAttribute(
+                PosixFilePermissions.fromString("rwx------")));
+        bus = new ProcessBuilder("dbus-daemon", "--session", "--nofork", "--print-address=1",
+                "--address=unix:path=" + this.dir.resolve("bus"))
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        BufferedReader reader = reader(bus);
+        busAddress = reader.readLine();
+        if (busAddress == null) {
+            bus.destroy();
+            throw new IOException("dbus-daemon did not start, exit code " + waitFor(bus));
+        }
+        try {
+            startKeyring(true);
+        } catch (IOException e) {
+            bus.destroy();
+            throw e;
+        }
+    }
+
+    private static BufferedReader reader(Process process) {
+        return new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static int waitFor(Process process) {
+        try {
+            return process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    /**
+     * Start the keyring daemon, if it is not running.
+     * @param unlock true to unlock the login keyring, creating it if needed; false to leave it locked
+     * @throws IOException if the daemon cannot be started
+     */
+    public synchronized void startKeyring(boolean unlock) throws IOException {
+        if (keyring != null && keyring.isAlive()) {
+            return;
+        }
+        List<String> command = new ArrayList<>(Arrays.asList("gnome-keyring-daemon", "--foreground", "--components=secrets"));
+        if (unlock) {
+            command.add("--unlock");
+        }
+        ProcessBuilder builder = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT);
+        builder.environment().putAll(getDaemonEnvironment());
+        try {
+            keyring = builder.start();
+        } catch (IOException e) {
+            throw new IOException("Cannot start gnome-keyring-daemon, is it installed?", e);
+        }
+        try (OutputStream stdin = keyring.getOutputStream()) {
+            // --unlock reads the password up to the end of the input
+            if (unlock) {
+                stdin.write(PASSWORD.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        BufferedReader reader = reader(keyring);
+        String line;
+        keyringControl = null;
+        while (keyringControl == null && (line = reader.readLine()) != null) {
+            if (line.startsWith("GNOME_KEYRING_CONTROL=")) {
+                keyringControl = line.substring(line.indexOf('=') + 1);
+            }
+        }
+        if (keyringControl == null) {
+            throw new IOException("gnome-keyring-daemon did not start, exit code " + waitFor(keyring));
+        }
+        Thread drain = new Thread(() -> {
+            try {
+                while (reader.readLine() != null) {
+                    // keep the pipe from filling up
+                }
+            } catch (IOException e) {
+                // the daemon is gone
+            }
+        }, "secret-service-output");
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    /**
+     * Kill the keyring daemon, like a crash. The keyrings stay, {@link #startKeyring(boolean)} brings it back.
+     */
+    public synchronized void stopKeyring() {
+        if (keyring != null) {
+            keyring.destroyForcibly();
+            waitFor(keyring);
+            keyring = null;
+        }
+    }
+
+    private Map<String, String> getDaemonEnvironment() {
+        Map<String, String> env = new HashMap<>();
+        env.put("DBUS_SESSION_BUS_ADDRESS", busAddress);
+        env.put("HOME", dir.resolve("home").toString());
+        env.put("XDG_DATA_HOME", dir.resolve("home").resolve(".local/share").toString());
+        env.put("XDG_CONFIG_HOME", dir.resolve("home").resolve(".config").toString());
+        env.put("XDG_RUNTIME_DIR", dir.resolve("run").toString());
+        return env;
+    }
+
+    /**
+     * Get the environment which points a process to this Secret Service.
+     * @return the environment variables
+     */
+    public synchronized Map<String, String> getEnvironment() {
+        Map<String, String> env = getDaemonEnvironment();
+        env.remove("HOME");
+        if (keyringControl != null) {
+            env.put("GNOME_KEYRING_CONTROL", keyringControl);
+        }
+        return env;
+    }
+
+    /**
+     * Run a Java main class in a child JVM with the class path and the {@code npm.*} system properties
+     * of this JVM, pointed to this Secret Service.
+     * @param mainClass the main class
+     * @param args the arguments
+     * @return the exit code of the child JVM
+     * @throws IOException if the JVM cannot be started
+     * @throws InterruptedException if interrupted while waiting for the JVM
+     */
+    public int runJava(String mainClass, List<String> args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        System.getProperties().stringPropertyNames().stream().filter(p -> p.startsWith("npm."))
+                .forEach(p -> command.add("-D" + p + '=' + System.getProperty(p)));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass);
+        command.addAll(args);
+        ProcessBuilder builder = new ProcessBuilder(command).inheritIO();
+        builder.environment().putAll(getEnvironment());
+        Process child = builder.start();
+        try {
+            return child.waitFor();
+        } finally {
+            child.destroy();
+        }
+    }
+
+    @Override
+    public void close() {
+        stopKeyring();
+        bus.destroy();
+        try {
+            if (!bus.waitFor(5, TimeUnit.SECONDS)) {
+                bus.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            bus.destroyForcibly();
+        }
+    }
+
+    /**
+     * Run a main class against a private Secret Service.
+     * @param args {@code [--locked] <main class> [arguments...]}
+     * @throws Exception if the Secret Service cannot be started
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        boolean locked = !arguments.isEmpty() && "--locked".equals(arguments.get(0));
+        if (locked) {
+            arguments.remove(0);
+        }
+        if (arguments.isEmpty()) {
+            System.err.println("Usage: PrivateSecretService [--locked] <main class> [arguments...]");
+            System.exit(2);
+        }
+        Path dir = Files.createTempDirectory("npm-secret-service");
+        int exitCode;
+        try (PrivateSecretService service = new PrivateSecretService(dir)) {
+            if (locked) {
+                service.stopKeyring();
+                service.startKeyring(false);
+            }
+            exitCode = service.runJava(arguments.get(0), arguments.subList(1, arguments.size()));
+        } finally {
+            BenchmarkBackends.deleteRecursively(dir);
+        }
+        System.exit(exitCode);
+    }
+}
@@ -0,0 +1,147 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.netbeans.modules.keyring.spi.EncryptionProvider;
+import org.netbeans.modules.keyring.utils.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The steps a secret takes between the JOSM preferences and the {@code FallbackProvider} (as used by
+ * {@link Win32Provider}), each next to its JDK equivalent: Base64 with {@link DatatypeConverter}
+ * or {@link Base64}, chars to bytes with {@link Utils} or the UTF-16BE charset, and the encryption.
+ * <p>
+ * The payloads are a short password and OAuth token preference strings of about 1 and 4 KB.
+ * Run with {@code -prof gc} (the default of the benchmark profile) for the allocation per call.
+ * {@link BenchmarkEncryption} stands in for the Windows data protection, which needs Windows.
+ * Note that the UTF-16BE variants leave an extra copy of the secret in an intermediate buffer,
+ * as written they are only here for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SecretCodecBenchmark {
+
+    private static final String TOKEN_CHARS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_.~{}\":,";
+
+    /** length of the secret in chars */
+    @Param({"16", "1024", "4096"})
+    public int length;
+
+    private char[] secret;
+    private byte[] secretBytes;
+    private EncryptionProvider encryption;
+    private byte[] ciphertext;
+    private String base64;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Random random = new Random(length);
+        secret = new char[length];
+        for (int i = 0; i < length; i++) {
+            secret[i] = TOKEN_CHARS.charAt(random.nextInt(TOKEN_CHARS.length()));
+        }
+        secretBytes = Utils.chars2Bytes(secret);
+        encryption = new BenchmarkEncryption();
+        ciphertext = encryption.encrypt(secret.clone());
+        base64 = DatatypeConverter._printBase64Binary(ciphertext);
+        if (!Arrays.equals(Base64.getDecoder().decode(base64), ciphertext)
+                || !Arrays.equals(chars2BytesUtf16(), secretBytes) || !Arrays.equals(bytes2CharsUtf16(), secret)) {
+            throw new IllegalStateException("JDK equivalents do not produce the same result");
+        }
+    }
+
+    @Benchmark
+    public byte[] base64DecodeDatatypeConverter() {
+        return DatatypeConverter._parseBase64Binary(base64);
+    }
+
+    @Benchmark
+    public byte[] base64DecodeJdk() {
+        return Base64.getDecoder().decode(base64);
+    }
+
+    @Benchmark
+    public String base64EncodeDatatypeConverter() {
+        return DatatypeConverter._printBase64Binary(ciphertext);
+    }
+
+    @Benchmark
+    public String base64EncodeJdk() {
+        return Base64.getEncoder().encodeToString(ciphertext);
+    }
+
+    @Benchmark
+    public char[] bytes2CharsUtils() {
+        return Utils.bytes2Chars(secretBytes);
+    }
+
+    @Benchmark
+    public char[] bytes2CharsUtf16() {
+        CharBuffer chars = StandardCharsets.UTF_16BE.decode(ByteBuffer.wrap(secretBytes));
+        return Arrays.copyOf(chars.array(), chars.limit());
+    }
+
+    @Benchmark
+    public byte[] chars2BytesUtils() {
+        return Utils.chars2Bytes(secret);
+    }
+
+    @Benchmark
+    public byte[] chars2BytesUtf16() {
+        ByteBuffer bytes = StandardCharsets.UTF_16BE.encode(CharBuffer.wrap(secret));
+        return Arrays.copyOf(bytes.array(), bytes.limit());
+    }
+
+    @Benchmark
+    public char[] decrypt() throws Exception {
+        return encryption.decrypt(ciphertext);
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        return encryption.encrypt(secret);
+    }
+
+    /**
+     * A complete read: preference string to secret.
+     * @return the secret
+     * @throws Exception never
+     */
+    @Benchmark
+    public char[] read() throws Exception {
+        return encryption.decrypt(DatatypeConverter._parseBase64Binary(base64));
+    }
+
+    /**
+     * A complete write: secret to preference string.
+     * @return the preference string
+     * @throws Exception never
+     */
+    @Benchmark
+    public String write() throws Exception {
+        return DatatypeConverter._printBase64Binary(encryption.encrypt(secret));
+    }
+}
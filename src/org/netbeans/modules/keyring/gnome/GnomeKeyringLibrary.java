@@ -137,6 +137,21 @@ public interface GnomeKeyringLibrary extends Library {
     void gnome_keyring_found_list_free(
             /*GList<GnomeKeyringFound>*/Pointer found_list);
 
+    int gnome_keyring_get_info_sync(
+            String keyring,
+            /*GnomeKeyringInfo*/Pointer[] info);
+
+    boolean gnome_keyring_info_get_is_locked(
+            /*GnomeKeyringInfo*/Pointer info);
+
+    void gnome_keyring_info_free(
+            /*GnomeKeyringInfo*/Pointer info);
+
+    /** a null password lets the daemon ask the user */
+    int gnome_keyring_unlock_sync(
+            String keyring,
+            String password);
+
     class GnomeKeyringFound extends Structure {
         public String keyring;
         public int item_id;
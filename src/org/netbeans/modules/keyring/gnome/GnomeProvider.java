@@ -50,11 +50,11 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.netbeans.modules.keyring.gnome.GnomeKeyringLibrary.GnomeKeyringFound;
-import org.netbeans.spi.keyring.KeyringProvider;
+import org.netbeans.spi.keyring.UnlockableKeyringProvider;
 
 import com.sun.jna.Pointer;
 
-public class GnomeProvider implements KeyringProvider {
+public class GnomeProvider implements UnlockableKeyringProvider {
 
     private static final Logger LOG = Logger.getLogger(GnomeProvider.class.getName());
     private static final String KEY = "key"; // NOI18N
@@ -128,7 +128,7 @@ public class GnomeProvider implements KeyringProvider {
         try {
             LIBRARY.gnome_keyring_attribute_list_append_string(attributes, KEY, key);
             int[] item_id = new int[1];
-            error(GnomeKeyringLibrary.LIBRARY.gnome_keyring_item_create_sync(
+            check("save", GnomeKeyringLibrary.LIBRARY.gnome_keyring_item_create_sync(
                     null, GNOME_KEYRING_ITEM_GENERIC_SECRET, description != null ? description : key, attributes, new String(password), true, item_id));
         } finally {
             LIBRARY.gnome_keyring_attribute_list_free(attributes);
@@ -140,7 +140,7 @@ public class GnomeProvider implements KeyringProvider {
         Pointer attributes = LIBRARY.g_array_new(0, 0, GnomeKeyringAttribute_SIZE);
         try {
             LIBRARY.gnome_keyring_attribute_list_append_string(attributes, KEY, key);
-            error(GnomeKeyringLibrary.LIBRARY.gnome_keyring_find_items_sync(GNOME_KEYRING_ITEM_GENERIC_SECRET, attributes, found));
+            check("delete", GnomeKeyringLibrary.LIBRARY.gnome_keyring_find_items_sync(GNOME_KEYRING_ITEM_GENERIC_SECRET, attributes, found));
         } finally {
             LIBRARY.gnome_keyring_attribute_list_free(attributes);
         }
@@ -162,8 +162,41 @@ public class GnomeProvider implements KeyringProvider {
             if ("SunOS".equals(System.getProperty("os.name")) && "5.10".equals(System.getProperty("os.version"))) { // #185698
                 save(key, new char[0], null); // gnome_keyring_item_delete(null, id, null, null, null) does not seem to do anything
             } else {
-                error(GnomeKeyringLibrary.LIBRARY.gnome_keyring_item_delete_sync(null, id));
+                check("delete", GnomeKeyringLibrary.LIBRARY.gnome_keyring_item_delete_sync(null, id));
+            }
+        }
+    }
+
+    public @Override boolean isLocked() {
+        Pointer[] info = new Pointer[1];
+        try {
+            // null is the default keyring, where items are created
+            if (LIBRARY.gnome_keyring_get_info_sync(null, info) != 0 || info[0] == null) {
+                // e.g. no default keyring yet, it is created by the first save
+                return false;
+            }
+            try {
+                return LIBRARY.gnome_keyring_info_get_is_locked(info[0]);
+            } finally {
+                LIBRARY.gnome_keyring_info_free(info[0]);
+            }
+        } catch (UnsatisfiedLinkError e) {
+            LOG.log(Level.FINE, null, e);
+            return false;
+        }
+    }
+
+    public @Override boolean unlock() {
+        try {
+            int code = LIBRARY.gnome_keyring_unlock_sync(null, null);
+            if (code == 0 || code == 3) { // ALREADY_UNLOCKED
+                return true;
             }
+            error(code);
+            return false;
+        } catch (UnsatisfiedLinkError e) {
+            LOG.log(Level.FINE, null, e);
+            return false;
         }
     }
 
@@ -185,4 +218,14 @@ public class GnomeProvider implements KeyringProvider {
         }
     }
 
+    /**
+     * Writes must not fail silently, the caller may rely on them, e.g. to delete another copy.
+     */
+    private static void check(String action, int code) {
+        if (code != 0 && code != 9) {
+            throw new IllegalStateException("gnome-keyring " + action + " failed: "
+                    + (code < ERRORS.length ? ERRORS[code] : Integer.toString(code)));
+        }
+    }
+
 }
@@ -47,21 +47,41 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.netbeans.spi.keyring.KeyringProvider;
+import org.netbeans.modules.keyring.utils.Utils;
+import org.netbeans.spi.keyring.UnlockableKeyringProvider;
 
 /**
  * JNA wrapper for certain functions from KDE Wallet API.
  * @author psychollek, ynov
  */
-public class KWalletProvider implements KeyringProvider {
+public class KWalletProvider implements UnlockableKeyringProvider {
 
     private static final Logger logger = Logger.getLogger(KWalletProvider.class.getName());
+    // some distributions only ship qdbus-qt5 or qdbus6; also allows a stand-in for benchmarks
+    private static final String QDBUS = System.getProperty("netbeans.keyring.kwallet.qdbus", "qdbus");
+    private static final long TRUST_OPEN = TimeUnit.SECONDS.toNanos(5);
     private char[] handler = "0".toCharArray();
     private boolean timeoutHappened = false;
     private final char[] defaultLocalWallet = "kdewallet".toCharArray();
+    private volatile int kdeVersion = -1; // version of the kwalletd that answered last, -1 if not known yet
+    // the wallet was found open at this System.nanoTime(), so the next calls need not ask again
+    private long openSince;
+    private boolean open = false;
+
+    /**
+     * Get the version of the kwalletd in use.
+     * @return 6 or 5, 0 for the kwalletd of KDE 4, or -1 if none has answered yet
+     */
+    public int getKdeVersion() {
+        return kdeVersion;
+    }
 
     @Override
     public boolean enabled(){
@@ -79,11 +99,7 @@ public class KWalletProvider implements KeyringProvider {
     @Override
     public char[] read(String key){
         if (updateHandler()){
-            CommandResult result = runCommand("readPassword", handler, getApplicationName(), key.toCharArray(), getApplicationName());
-            if (result.exitCode != 0){
-                warning("read action returned not 0 exitCode");
-            }
-            return result.retVal.length > 0 ? result.retVal : null;
+            return readEntry(key);
         }
         return null;
         //throw new KwalletException("read");
@@ -93,39 +109,180 @@ public class KWalletProvider implements KeyringProvider {
     public void save(String key, char[] password, String description){
         //description is forgoten ! kdewallet dosen't have any facility to store
         //it by default and I don't want to do it by adding new fields to kwallet
-        if (updateHandler()){
-            CommandResult result = runCommand("writePassword", handler , getApplicationName()
-                    , key.toCharArray(), password , getApplicationName());
-            if (result.exitCode != 0 || new String(result.retVal).equals("-1")) {
-                warning("save action failed");
-            }
+        if (!updateHandler()){
+            throw new IllegalStateException("KWallet: cannot save, the wallet is not open");
         }
-        //throw new KwalletException("save");
+        writeEntry(key, password);
     }
 
     @Override
     public void delete(String key){
-        if (updateHandler()){
-            CommandResult result = runCommand("removeEntry" ,handler,
-            getApplicationName() , key.toCharArray() , getApplicationName());
-             if (result.exitCode != 0  || new String(result.retVal).equals("-1")) {
-                warning("delete action failed");
+        if (!updateHandler()){
+            throw new IllegalStateException("KWallet: cannot delete, the wallet is not open");
+        }
+        removeEntry(key);
+    }
+
+    @Override
+    public Map<String, char[]> readAll(Collection<String> keys){
+        Map<String, char[]> found = new LinkedHashMap<>();
+        if (keys.isEmpty() || !updateHandler()){
+            return found;
+        }
+        if (keys.size() > 1 && readPasswordList(keys, found)){
+            return found;
+        }
+        for (String key : keys){
+            char[] value = readEntry(key);
+            if (value != null){
+                found.put(key, value);
             }
         }
-        //throw new KwalletException("delete");
+        return found;
+    }
+
+    @Override
+    public void saveAll(Map<String, char[]> passwords, Map<String, String> descriptions){
+        if (passwords.isEmpty()){
+            return;
+        }
+        if (!updateHandler()){
+            throw new IllegalStateException("KWallet: cannot save, the wallet is not open");
+        }
+        for (Map.Entry<String, char[]> e : passwords.entrySet()){
+            writeEntry(e.getKey(), e.getValue());
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<String> keys){
+        if (keys.isEmpty()){
+            return;
+        }
+        if (!updateHandler()){
+            throw new IllegalStateException("KWallet: cannot delete, the wallet is not open");
+        }
+        for (String key : keys){
+            removeEntry(key);
+        }
+    }
+
+    private char[] readEntry(String key){
+        CommandResult result = runCommand("readPassword", handler, getApplicationName(), key.toCharArray(), getApplicationName());
+        if (result.exitCode != 0){
+            open = false;
+            warning("read action returned not 0 exitCode");
+        }
+        return result.retVal.length > 0 ? result.retVal : null;
+    }
+
+    private void writeEntry(String key, char[] password){
+        CommandResult result = runCommand("writePassword", handler , getApplicationName()
+                , key.toCharArray(), password , getApplicationName());
+        if (result.exitCode != 0 || new String(result.retVal).equals("-1")) {
+            open = false;
+            warning("save action failed");
+            throw new IllegalStateException("KWallet: save action failed");
+        }
+    }
+
+    private void removeEntry(String key){
+        CommandResult result = runCommand("removeEntry" ,handler,
+        getApplicationName() , key.toCharArray() , getApplicationName());
+         if (result.exitCode != 0  || new String(result.retVal).equals("-1")) {
+            open = false;
+            warning("delete action failed");
+            throw new IllegalStateException("KWallet: delete action failed");
+        }
+    }
+
+    /**
+     * Fetch all given keys with one readPasswordList call, using their common prefix as pattern.
+     * qdbus prints the resulting map as one "key: value" line per entry.
+     * @return false if the keys cannot be expressed as one pattern or the call failed
+     */
+    private boolean readPasswordList(Collection<String> keys, Map<String, char[]> found){
+        String prefix = null;
+        for (String key : keys){
+            if (prefix == null){
+                prefix = key;
+            } else {
+                int i = 0;
+                while (i < prefix.length() && i < key.length() && prefix.charAt(i) == key.charAt(i)){
+                    i++;
+                }
+                prefix = prefix.substring(0, i);
+            }
+        }
+        // the pattern is a wildcard expression, so it must not contain any of its special characters
+        if (prefix == null || prefix.isEmpty() || prefix.matches(".*[*?\\[\\]\\\\].*")){
+            return false;
+        }
+        CommandResult result = runCommand("readPasswordList", handler, getApplicationName(),
+                (prefix + "*").toCharArray(), getApplicationName());
+        if (result.exitCode != 0){
+            return false;
+        }
+        String current = null;
+        StringBuilder value = new StringBuilder();
+        for (String line : new String(result.retVal).split("\n", -1)){
+            int sep = line.startsWith(prefix) ? line.indexOf(": ", prefix.length()) : -1;
+            if (sep >= 0){
+                // start of the next entry, which may also be one that was not asked for
+                putListEntry(found, current, value);
+                String key = line.substring(0, sep);
+                current = keys.contains(key) ? key : null;
+                value.setLength(0);
+                value.append(line, sep + 2, line.length());
+            } else if (current != null){
+                // continuation of a multi-line value
+                value.append('\n').append(line);
+            }
+        }
+        putListEntry(found, current, value);
+        return true;
+    }
+
+    private static void putListEntry(Map<String, char[]> found, String key, StringBuilder value){
+        if (key != null && value.length() > 0){
+            char[] chars = new char[value.length()];
+            value.getChars(0, chars.length, chars, 0);
+            found.put(key, chars);
+        }
     }
 
     private boolean updateHandler(){
         if(timeoutHappened) {
             return false;
         }
-        handler = new String(handler).isEmpty() ? "0".toCharArray() : handler;
-        CommandResult result = runCommand("isOpen",handler);          
-        if(new String(result.retVal).equals("true")){
+        // the caller usually checks isLocked() or calls unlock() right before, no need for another isOpen call
+        if(open && System.nanoTime() - openSince < TRUST_OPEN) {
             return true;
         }
+        return !isLocked() || unlock();
+    }
+
+    private void setOpen(boolean open){
+        this.open = open;
+        openSince = System.nanoTime();
+    }
+
+    @Override
+    public boolean isLocked(){
+        handler = new String(handler).isEmpty() ? "0".toCharArray() : handler;
+        CommandResult result = runCommand("isOpen",handler);
+        boolean locked = !new String(result.retVal).equals("true");
+        setOpen(!locked);
+        return locked;
+    }
+
+    @Override
+    public boolean unlock(){
+        if(timeoutHappened) {
+            return false;
+        }
         char[] localWallet = defaultLocalWallet;
-        result = runCommand("localWallet");                      
+        CommandResult result = runCommand("localWallet");                      
         if(result.exitCode == 0) {                    
             localWallet = result.retVal;
         }
@@ -148,25 +305,39 @@ public class KWalletProvider implements KeyringProvider {
             return false;
         }         
         handler = result.retVal;
+        setOpen(true);
         return true;
     }
           
     
 
     private CommandResult runCommand(String command,char[]... commandArgs) {
+        if (kdeVersion >= 0) {
+            CommandResult result = runCommandKdeVersion(kdeVersion, command, commandArgs);
+            if (!isServiceMissing(kdeVersion, result)) {
+                return result;
+            }
+            // the daemon went away (e.g. it was restarted as another version), look for it again
+            kdeVersion = -1;
+        }
         CommandResult result = null;
         for (int i : new int[] {6, 5, 0}) {
             result = runCommandKdeVersion(i, command, commandArgs);
-            if (result.exitCode == 0 && !result.errVal.equals("Service 'org.kde.kwalletd" + (i != 0 ? i : "") + "' does not exist.")) {
+            if (result.exitCode == 0 && !isServiceMissing(i, result)) {
+                kdeVersion = i;
                 break;
             }
         }
         return result;
     }
 
+    private static boolean isServiceMissing(int kdeVersion, CommandResult result) {
+        return result.errVal.equals("Service 'org.kde.kwalletd" + (kdeVersion != 0 ? kdeVersion : "") + "' does not exist.");
+    }
+
     private CommandResult runCommandKdeVersion(int kdeVersion, String command, char[]... commandArgs) {
         String[] argv = new String[commandArgs.length+4];
-        argv[0] = "qdbus";
+        argv[0] = QDBUS;
         argv[1] = "org.kde.kwalletd" + (kdeVersion != 0 ? kdeVersion : "");
         argv[2] = "/modules/kwalletd" + (kdeVersion != 0 ? kdeVersion : "");
         argv[3] = "org.kde.KWallet."+command;
@@ -184,6 +355,7 @@ public class KWalletProvider implements KeyringProvider {
                 logger.log(Level.FINE, "executing {0}", Arrays.toString(argv));
             }
             Process pr = rt.exec(argv);
+            Utils.processStarted();
             
             try (BufferedReader input = new BufferedReader(new InputStreamReader(pr.getInputStream(), StandardCharsets.UTF_8))) {
 
@@ -42,10 +42,29 @@
 
 package org.netbeans.modules.keyring.utils;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public class Utils {
 
+    private static final AtomicLong processCount = new AtomicLong();
+
     private Utils() {}
 
+    /**
+     * Record that a provider started an external process, e.g. a command line client of the keyring.
+     */
+    public static void processStarted() {
+        processCount.incrementAndGet();
+    }
+
+    /**
+     * Get the number of external processes started by providers so far.
+     * @return the number of processes
+     */
+    public static long getProcessCount() {
+        return processCount.get();
+    }
+
     public static byte[] chars2Bytes(char[] chars) {
         byte[] bytes = new byte[chars.length * 2];
         for (int i = 0; i < chars.length; i++) {
@@ -0,0 +1,77 @@
+// License: GPL. For details, see LICENSE file.
+package org.netbeans.spi.keyring;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Extension of {@link KeyringProvider} with non-blocking operations.
+ * <p>
+ * Providers with a native asynchronous API can implement this interface directly;
+ * blocking providers are adapted by running them on a dedicated executor.
+ * Unlike the blocking methods, these may be called from any thread at any time,
+ * and the returned futures may complete on a thread of the provider.
+ * <p>
+ * Arrays passed to a save operation must not be nulled out before its future has completed.
+ */
+public interface AsyncKeyringProvider extends KeyringProvider {
+
+    /**
+     * Read several keys from the ring, see {@link #readAll}.
+     * @param keys the identifiers of the keys
+     * @return a future map from key to value containing only the keys which were found
+     *         (elements may be later nulled out)
+     */
+    CompletableFuture<Map<String, char[]>> readAllAsync(Collection<String> keys);
+
+    /**
+     * Save several keys to the ring, see {@link #saveAll}.
+     * @param passwords a map from key identifier to the sensitive information associated with it
+     * @param descriptions a map from key identifier to a user-visible description (may be null,
+     *                     and may lack entries)
+     * @return a future which completes when the keys have been saved
+     */
+    CompletableFuture<Void> saveAllAsync(Map<String, char[]> passwords, Map<String, String> descriptions);
+
+    /**
+     * Delete several keys from the ring, see {@link #deleteAll}.
+     * @param keys the key identifiers
+     * @return a future which completes when the keys have been deleted
+     */
+    CompletableFuture<Void> deleteAllAsync(Collection<String> keys);
+
+    /**
+     * Read a key from the ring, see {@link #read}.
+     * The default implementation calls {@link #readAllAsync}.
+     * @param key the identifier of the key
+     * @return a future value (elements may be later nulled out), completing with null if not present
+     */
+    default CompletableFuture<char[]> readAsync(String key) {
+        return readAllAsync(Collections.singletonList(key)).thenApply(values -> values.get(key));
+    }
+
+    /**
+     * Save a key to the ring, see {@link #save}.
+     * The default implementation calls {@link #saveAllAsync}.
+     * @param key a key identifier
+     * @param password the password or other sensitive information associated with the key
+     * @param description a user-visible description of the key (may be null)
+     * @return a future which completes when the key has been saved
+     */
+    default CompletableFuture<Void> saveAsync(String key, char[] password, String description) {
+        return saveAllAsync(Collections.singletonMap(key, password),
+                description == null ? null : Collections.singletonMap(key, description));
+    }
+
+    /**
+     * Delete a key from the ring, see {@link #delete}.
+     * The default implementation calls {@link #deleteAllAsync}.
+     * @param key a key identifier
+     * @return a future which completes when the key has been deleted
+     */
+    default CompletableFuture<Void> deleteAsync(String key) {
+        return deleteAllAsync(Collections.singletonList(key));
+    }
+}
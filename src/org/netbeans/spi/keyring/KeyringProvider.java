@@ -42,6 +42,10 @@
 
 package org.netbeans.spi.keyring;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Provider for a keyring.
  * Should be registered in global lookup.
@@ -72,7 +76,7 @@ public interface KeyringProvider {
 
     /**
      * Save a key to the ring.
-     * If it could not be saved, do nothing.
+     * If it could not be saved, throw an unchecked exception; providers which cannot tell do nothing.
      * If the key already existed, overwrite the password.
      * @param key a key identifier
      * @param password the password or other sensitive information associated with the key
@@ -84,8 +88,55 @@ public interface KeyringProvider {
     /**
      * Delete a key from the ring.
      * If the key was not in the ring to begin with, do nothing.
+     * If it could not be deleted, throw an unchecked exception; providers which cannot tell do nothing.
      * @param key a key identifier
      */
     void delete(String key);
 
+    /**
+     * Read several keys from the ring.
+     * The default implementation calls {@link #read} once per key;
+     * providers which can fetch several entries in one backend round trip should override it.
+     * @param keys the identifiers of the keys
+     * @return a map from key to value containing only the keys which were found
+     *         (elements may be later nulled out)
+     */
+    default Map<String, char[]> readAll(Collection<String> keys) {
+        Map<String, char[]> result = new LinkedHashMap<>();
+        for (String key : keys) {
+            char[] value = read(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Save several keys to the ring.
+     * Same semantics as {@link #save} for each entry.
+     * The default implementation calls {@link #save} once per key.
+     * @param passwords a map from key identifier to the sensitive information associated with it
+     *                  (elements will be later nulled out)
+     * @param descriptions a map from key identifier to a user-visible description (may be null,
+     *                     and may lack entries)
+     */
+    default void saveAll(Map<String, char[]> passwords, Map<String, String> descriptions) {
+        for (Map.Entry<String, char[]> e : passwords.entrySet()) {
+            save(e.getKey(), e.getValue(), descriptions == null ? null : descriptions.get(e.getKey()));
+        }
+    }
+
+    /**
+     * Delete several keys from the ring.
+     * Keys which were not in the ring to begin with are ignored.
+     * The default implementation calls {@link #delete} once per key.
+     * @param keys the key identifiers
+     */
+    default void deleteAll(Collection<String> keys) {
+        for (String key : keys) {
+            delete(key);
+        }
+    }
+
 }
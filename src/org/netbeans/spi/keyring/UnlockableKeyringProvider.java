@@ -0,0 +1,24 @@
+// License: GPL. For details, see LICENSE file.
+package org.netbeans.spi.keyring;
+
+/**
+ * Extension of {@link KeyringProvider} for keyrings which can be locked, like a closed KDE wallet
+ * or a locked GNOME keyring.
+ * <p>
+ * Such providers may still unlock the keyring on their own when an operation needs it; these
+ * methods let the caller do it once up front, instead of once per concurrent operation.
+ */
+public interface UnlockableKeyringProvider extends KeyringProvider {
+
+    /**
+     * Check whether the keyring is locked. This must not prompt the user.
+     * @return true if the keyring has to be unlocked before it can be used
+     */
+    boolean isLocked();
+
+    /**
+     * Unlock the keyring, usually by asking the user for its password.
+     * @return true if the keyring is unlocked now, false if the user declined or unlocking failed
+     */
+    boolean unlock();
+}
@@ -0,0 +1,168 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Finds the native password manager of the running system.
+ * <p>
+ * All candidates are probed at the same time, each on its own thread, and a probe which
+ * does not answer within the probe timeout counts as not found. If several candidates are
+ * found, the first in {@link NPMType#getCandidates()} order wins.
+ * <p>
+ * A found password manager is remembered together with a fingerprint of the environment
+ * (operating system, desktop session, keyring services), so that later runs in the same
+ * environment do not have to probe again. A miss is only remembered for unattended runs, and
+ * only for a day: the user may create a keyring or wallet after being told that none could be found.
+ */
+public final class BackendDetector {
+
+    private static final String NPM = "Native Password Manager Plugin: ";
+    private static final String PREF_DETECTED = NPMPlugin.NPMPLUGIN_KEY + "detected";
+    private static final String PREF_PROBE_TIMEOUT = NPMPlugin.NPMPLUGIN_KEY + "probe-timeout";
+    private static final String MISS = "none";
+    private static final long MISS_VALIDITY = TimeUnit.DAYS.toMillis(1);
+
+    /** environment variables which decide which password managers are available */
+    private static final List<String> ENVIRONMENT = Arrays.asList(
+            "XDG_CURRENT_DESKTOP", "XDG_SESSION_DESKTOP", "DESKTOP_SESSION", "KDE_FULL_SESSION", "KDE_SESSION_VERSION");
+    /** environment variables of which only the presence matters, their values change with every session */
+    private static final List<String> ENVIRONMENT_PRESENCE = Arrays.asList(
+            "DBUS_SESSION_BUS_ADDRESS", "GNOME_KEYRING_CONTROL", "GNOME_KEYRING_PID");
+
+    private BackendDetector() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * Get a fingerprint of the environment which decides which password managers are available.
+     * @return the fingerprint
+     */
+    public static String getEnvironmentFingerprint() {
+        Map<String, String> env = System.getenv();
+        StringBuilder sb = new StringBuilder(System.getProperty("os.name", ""));
+        for (String name : ENVIRONMENT) {
+            sb.append('\n').append(name).append('=').append(env.getOrDefault(name, ""));
+        }
+        for (String name : ENVIRONMENT_PRESENCE) {
+            sb.append('\n').append(name).append(env.containsKey(name) ? "+" : "-");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+        return String.format(Locale.ROOT, "%08x", crc.getValue());
+    }
+
+    /**
+     * Get the password manager found by an earlier run in the same environment.
+     * @return the remembered password manager, or null if there is none for this environment
+     */
+    public static NPMType getRememberedResult() {
+        List<String> detected = Config.getPref().getList(PREF_DETECTED, Collections.emptyList());
+        if (detected.size() == 2 && detected.get(0).equals(getEnvironmentFingerprint())) {
+            return NPMType.fromPrefString(detected.get(1));
+        }
+        return null;
+    }
+
+    /**
+     * Find the password manager, using the remembered result if there is one.
+     * <p>
+     * This may take up to the probe timeout, so it must not be called on the EDT.
+     * @return the password manager found, or null if none is available
+     */
+    public static NPMType detect() {
+        return detect(Config.getPref().getLong(PREF_PROBE_TIMEOUT, 5_000), false);
+    }
+
+    /**
+     * Find the password manager, using the remembered result if there is one.
+     * <p>
+     * This may take up to {@code timeout}, so it must not be called on the EDT.
+     * @param timeout the maximum time in milliseconds to wait for the probes
+     * @param rememberMiss also remember for a day that none was found, so that unattended runs
+     *                     do not wait for the probes on every start
+     * @return the password manager found, or null if none is available
+     */
+    public static NPMType detect(long timeout, boolean rememberMiss) {
+        NPMType remembered = getRememberedResult();
+        if (remembered != null) {
+            Logging.info(NPM + "Using " + remembered.getName() + " found earlier in this environment");
+            return remembered;
+        }
+        String fingerprint = getEnvironmentFingerprint();
+        if (rememberMiss && isRememberedMiss(fingerprint)) {
+            Logging.info(NPM + "No password manager found earlier in this environment");
+            return null;
+        }
+        NPMType found = probe(NPMType.getCandidates(), timeout);
+        if (found != null) {
+            Config.getPref().putList(PREF_DETECTED, Arrays.asList(fingerprint, found.toPrefString()));
+        } else if (rememberMiss) {
+            Config.getPref().putList(PREF_DETECTED, Arrays.asList(fingerprint, MISS, Long.toString(System.currentTimeMillis())));
+        }
+        return found;
+    }
+
+    private static boolean isRememberedMiss(String fingerprint) {
+        List<String> detected = Config.getPref().getList(PREF_DETECTED, Collections.emptyList());
+        try {
+            return detected.size() == 3 && detected.get(0).equals(fingerprint) && MISS.equals(detected.get(1))
+                    && System.currentTimeMillis() - Long.parseLong(detected.get(2)) < MISS_VALIDITY;
+        } catch (NumberFormatException e) {
+            Logging.trace(e);
+            return false;
+        }
+    }
+
+    /**
+     * Probe the given password managers concurrently.
+     * @param candidates the password managers, most preferred first
+     * @param timeout the maximum time in milliseconds to wait for the probes
+     * @return the first candidate which is enabled, or null if none answered in time
+     */
+    public static NPMType probe(List<NPMType> candidates, long timeout) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        List<FutureTask<Boolean>> probes = new ArrayList<>(candidates.size());
+        for (NPMType manager : candidates) {
+            Logging.info(NPM + "Looking for " + manager.getName());
+            FutureTask<Boolean> probe = new FutureTask<>(manager::isEnabled);
+            Thread t = new Thread(probe, "npm-probe-" + manager.toPrefString());
+            // a hanging backend must not keep JOSM from exiting
+            t.setDaemon(true);
+            t.start();
+            probes.add(probe);
+        }
+        for (int i = 0; i < candidates.size(); i++) {
+            NPMType manager = candidates.get(i);
+            try {
+                if (probes.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    Logging.info(NPM + "Found " + manager.getName());
+                    return manager;
+                }
+            } catch (TimeoutException e) {
+                Logging.warn(NPM + manager.getName() + " did not answer within " + timeout + " ms");
+            } catch (ExecutionException e) {
+                Logging.warn(NPM + "Probing " + manager.getName() + " failed: " + e.getCause());
+                Logging.trace(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+}
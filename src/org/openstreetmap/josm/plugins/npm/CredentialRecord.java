@@ -0,0 +1,77 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.util.Arrays;
+
+/**
+ * Packs all fields of one credential (e.g. username and password) into a single
+ * keyring entry, so that it is read and written in one backend call and
+ * cannot end up half updated.
+ * <p>
+ * The format is the version tag {@code npm1:}, followed by each field as its
+ * length in decimal, a colon and the field characters, for example
+ * {@code npm1:5:alice6:secret}.
+ */
+public final class CredentialRecord {
+
+    private static final char[] MAGIC = "npm1:".toCharArray();
+
+    private CredentialRecord() {}
+
+    /**
+     * Encode the fields into one record.
+     * @param fields the fields, {@code null} is stored as empty field
+     * @return the record
+     */
+    public static char[] encode(char[]... fields) {
+        int length = MAGIC.length;
+        for (char[] field : fields) {
+            int l = field == null ? 0 : field.length;
+            length += Integer.toString(l).length() + 1 + l;
+        }
+        char[] record = new char[length];
+        System.arraycopy(MAGIC, 0, record, 0, MAGIC.length);
+        int pos = MAGIC.length;
+        for (char[] field : fields) {
+            int l = field == null ? 0 : field.length;
+            String prefix = Integer.toString(l);
+            prefix.getChars(0, prefix.length(), record, pos);
+            pos += prefix.length();
+            record[pos++] = ':';
+            if (l > 0) {
+                System.arraycopy(field, 0, record, pos, l);
+                pos += l;
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Decode a record.
+     * @param record the record as read from the keyring, may be null
+     * @param fieldCount the expected number of fields
+     * @return the fields, or {@code null} if the value is missing or not a record with this number of fields
+     */
+    public static char[][] decode(char[] record, int fieldCount) {
+        if (record == null || record.length < MAGIC.length
+                || !Arrays.equals(Arrays.copyOf(record, MAGIC.length), MAGIC)) {
+            return null;
+        }
+        char[][] fields = new char[fieldCount][];
+        int pos = MAGIC.length;
+        for (int i = 0; i < fieldCount; i++) {
+            int l = 0;
+            int start = pos;
+            while (pos < record.length && record[pos] >= '0' && record[pos] <= '9' && pos - start < 9) {
+                l = l * 10 + (record[pos++] - '0');
+            }
+            if (pos == start || pos >= record.length || record[pos] != ':' || record.length - pos - 1 < l) {
+                return null;
+            }
+            pos++;
+            fields[i] = Arrays.copyOfRange(record, pos, pos + l);
+            pos += l;
+        }
+        return pos == record.length ? fields : null;
+    }
+}
@@ -0,0 +1,42 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for a lookup or store of {@link NPMCredentialsAgent}, disabled by default.
+ * <p>
+ * The stack trace shows which part of JOSM asked for the credentials; the keyring calls
+ * it caused are {@link KeyringEvent}s on the keyring threads within its duration. The host is
+ * only recorded as a hash, like the key names of {@link KeyringEvent}.
+ */
+@Name("org.openstreetmap.josm.plugins.npm.Credentials")
+@Label("Credentials Operation")
+@Category({"JOSM", "Native Password Manager"})
+@Description("A lookup or store of credentials by JOSM")
+@Enabled(false)
+final class CredentialsEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Requestor Type")
+    @Description("SERVER, PROXY, or empty for OAuth tokens")
+    String requestorType;
+
+    @Label("Host Hash")
+    @Description("Truncated HMAC-SHA256 hash of the host name, with a key of the session")
+    String hostHash;
+
+    @Label("Cache Hit")
+    @Description("Answered from the cache of the agent, without asking the keyring")
+    boolean cacheHit;
+
+    @Label("Found")
+    boolean found;
+}
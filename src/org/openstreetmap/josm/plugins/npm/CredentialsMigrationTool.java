@@ -0,0 +1,427 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.Authenticator.RequestorType;
+import java.net.PasswordAuthentication;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.oauth.IOAuthToken;
+import org.openstreetmap.josm.data.preferences.JosmBaseDirectories;
+import org.openstreetmap.josm.data.preferences.JosmUrls;
+import org.openstreetmap.josm.io.DefaultProxySelector;
+import org.openstreetmap.josm.io.OsmApi;
+import org.openstreetmap.josm.io.auth.CredentialsAgent;
+import org.openstreetmap.josm.io.auth.CredentialsAgentException;
+import org.openstreetmap.josm.io.auth.JosmPreferencesCredentialAgent;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Command line tool which moves all JOSM credentials from one backend to another, without any dialog.
+ * <p>
+ * Run it with JOSM and the plugin on the class path, using the preferences of the current user:
+ * <pre>java -cp josm.jar:native-password-manager.jar org.openstreetmap.josm.plugins.npm.CredentialsMigrationTool
+ *     --from josm-standard --to kwallet --delete-source</pre>
+ * The credentials are copied in batches: all entries of a batch are looked up in the source
+ * and stored in the target in parallel, then the target is flushed and every entry is read
+ * back through an agent of its own and compared. Only verified entries are deleted from the
+ * source and recorded in the checkpoint file, so an interrupted run can simply be started again.
+ * The host indexes in the preferences describe the target; only a target without them, the
+ * plain text storage, leaves them to the source.
+ * <p>
+ * The keyring cannot be enumerated, so the entries come from the preferences: the OSM API
+ * login, the proxy login, the hosts of {@link HostCredentialIndex} and {@link OAuthHostIndex}
+ * and, for the plain text storage, every stored server login and OAuth token. Logins for other
+ * servers which were stored in a keyring before the host index existed have to be named with
+ * {@code --host}.
+ */
+public final class CredentialsMigrationTool {
+
+    private static final String OAUTH_PREF_PREFIX = "oauth.access-token.object.";
+    private static final String SERVER_USERNAME_PREF_PREFIX = "server.username.";
+    private static final int BATCH_SIZE = 50;
+    private static final long FLUSH_TIMEOUT = 60_000;
+
+    /** A credential to migrate, identified by a stable string used in the checkpoint file. */
+    private static final class Entry {
+        final RequestorType requestorType; // null for OAuth tokens
+        final String host;
+
+        Entry(RequestorType requestorType, String host) {
+            this.requestorType = requestorType;
+            this.host = host;
+        }
+
+        String getId() {
+            return (requestorType == null ? "oauth" : requestorType.name().toLowerCase(Locale.ROOT)) + ' ' + host;
+        }
+
+        @Override
+        public String toString() {
+            return getId();
+        }
+    }
+
+    private final NPMType from;
+    private final NPMType to;
+    private final boolean deleteSource;
+    private final Path checkpoint;
+    private final int threads;
+    private final List<String> extraHosts;
+    private CredentialsAgent source;
+    private CredentialsAgent target;
+    private CredentialsAgent verifier;
+    /** user names of the server logins copied to the target */
+    private final Map<String, String> copiedLogins = new ConcurrentHashMap<>();
+
+    private CredentialsMigrationTool(NPMType from, NPMType to, boolean deleteSource, Path checkpoint, int threads,
+            List<String> extraHosts) {
+        this.from = from;
+        this.to = to;
+        this.deleteSource = deleteSource;
+        this.checkpoint = checkpoint;
+        this.threads = threads;
+        this.extraHosts = extraHosts;
+    }
+
+    /**
+     * Create an agent for a backend.
+     * @param persistIndexes whether the agent may change the host indexes in the preferences
+     */
+    private static CredentialsAgent createAgent(NPMType type, boolean persistIndexes) {
+        return type == NPMType.PLAIN ? new JosmPreferencesCredentialAgent() : new NPMCredentialsAgent(type, null, persistIndexes);
+    }
+
+    private static void close(CredentialsAgent agent) {
+        if (agent instanceof NPMCredentialsAgent) {
+            ((NPMCredentialsAgent) agent).close();
+        }
+    }
+
+    /**
+     * Collect the credentials which may be stored in the source backend.
+     * @return the entries, without duplicates
+     */
+    private List<Entry> enumerate() {
+        Set<String> serverHosts = new LinkedHashSet<>();
+        Set<String> oauthHosts = new LinkedHashSet<>(new OAuthHostIndex().getHosts());
+        serverHosts.add(OsmApi.getOsmApi().getHost());
+        serverHosts.addAll(new HostCredentialIndex().getEntries());
+        serverHosts.addAll(extraHosts);
+        if (from == NPMType.PLAIN) {
+            for (String key : Config.getPref().getKeySet()) {
+                if (key.startsWith(SERVER_USERNAME_PREF_PREFIX)) {
+                    serverHosts.add(key.substring(SERVER_USERNAME_PREF_PREFIX.length()));
+                } else if (key.startsWith(OAUTH_PREF_PREFIX)) {
+                    // oauth.access-token.object.<version>.<host>
+                    String rest = key.substring(OAUTH_PREF_PREFIX.length());
+                    oauthHosts.add(rest.substring(rest.indexOf('.') + 1));
+                }
+            }
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (String host : serverHosts) {
+            entries.add(new Entry(RequestorType.SERVER, host));
+        }
+        entries.add(new Entry(RequestorType.PROXY, Config.getPref().get(DefaultProxySelector.PROXY_HTTP_HOST, null)));
+        for (String host : oauthHosts) {
+            entries.add(new Entry(null, host));
+        }
+        return entries;
+    }
+
+    /**
+     * Copy one entry from the source to the target.
+     * @return true if the source had a value, false if there was nothing to copy
+     */
+    private boolean copy(Entry entry) throws CredentialsAgentException {
+        if (entry.requestorType == null) {
+            IOAuthToken token = source.lookupOAuthAccessToken(entry.host);
+            if (token != null) {
+                target.storeOAuthAccessToken(entry.host, token);
+            }
+            return token != null;
+        }
+        PasswordAuthentication auth = source.lookup(entry.requestorType, entry.host);
+        if (auth == null || auth.getUserName() == null || auth.getUserName().isEmpty()) {
+            return false;
+        }
+        target.store(entry.requestorType, entry.host, auth);
+        if (entry.requestorType == RequestorType.SERVER) {
+            copiedLogins.put(entry.host, auth.getUserName());
+        }
+        return true;
+    }
+
+    /**
+     * Compare the entry in the source with the one the verifier reads from the target backend.
+     * Each entry is verified once, so the verifier has not cached it from an earlier batch.
+     */
+    private boolean verify(Entry entry) throws CredentialsAgentException {
+        if (entry.requestorType == null) {
+            IOAuthToken expected = source.lookupOAuthAccessToken(entry.host);
+            IOAuthToken actual = verifier.lookupOAuthAccessToken(entry.host);
+            return actual != null && expected.getOAuthType() == actual.getOAuthType()
+                    && expected.toPreferencesString().equals(actual.toPreferencesString())
+                    && expected.getParameters().toPreferencesString().equals(actual.getParameters().toPreferencesString());
+        }
+        PasswordAuthentication expected = source.lookup(entry.requestorType, entry.host);
+        PasswordAuthentication actual = verifier.lookup(entry.requestorType, entry.host);
+        return actual != null && Objects.equals(expected.getUserName(), actual.getUserName())
+                && Arrays.equals(expected.getPassword(), actual.getPassword());
+    }
+
+    private void deleteFromSource(Entry entry) throws CredentialsAgentException {
+        if (entry.requestorType == null) {
+            source.storeOAuthAccessToken(entry.host, null);
+        } else if (from != NPMType.PLAIN) {
+            source.store(entry.requestorType, entry.host, null);
+        } else if (entry.requestorType == RequestorType.PROXY) {
+            Config.getPref().put(DefaultProxySelector.PROXY_USER, null);
+            Config.getPref().put(DefaultProxySelector.PROXY_PASS, null);
+        } else if (OsmApi.getOsmApi().getHost().equals(entry.host)) {
+            Config.getPref().put("osm-server.username", null);
+            Config.getPref().put("osm-server.password", null);
+        } else {
+            Config.getPref().put(SERVER_USERNAME_PREF_PREFIX + entry.host, null);
+            Config.getPref().put("server.password." + entry.host, null);
+        }
+    }
+
+    private interface EntryTask {
+        boolean run(Entry entry) throws CredentialsAgentException;
+    }
+
+    /**
+     * Run a task for all entries in parallel.
+     * @return the entries for which the task returned true
+     */
+    private List<Entry> forAll(ExecutorService pool, List<Entry> entries, EntryTask task)
+            throws InterruptedException {
+        List<Future<Boolean>> results = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            results.add(pool.submit(() -> task.run(entry)));
+        }
+        List<Entry> ok = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            try {
+                if (results.get(i).get()) {
+                    ok.add(entries.get(i));
+                }
+            } catch (ExecutionException e) {
+                System.err.println(entries.get(i) + ": " + e.getCause());
+            }
+        }
+        return ok;
+    }
+
+    private static void flush(CredentialsAgent agent) throws IOException {
+        if (agent instanceof NPMCredentialsAgent) {
+            if (!((NPMCredentialsAgent) agent).flush(FLUSH_TIMEOUT)) {
+                throw new IOException("Credentials could not be written within " + FLUSH_TIMEOUT + " ms");
+            }
+        } else {
+            Preferences.main().save();
+        }
+    }
+
+    private Set<String> readCheckpoint() throws IOException {
+        if (checkpoint == null || !Files.exists(checkpoint)) {
+            return Collections.emptySet();
+        }
+        return new HashSet<>(Files.readAllLines(checkpoint, StandardCharsets.UTF_8));
+    }
+
+    private void writeCheckpoint(List<Entry> done) throws IOException {
+        if (checkpoint == null) {
+            return;
+        }
+        try (BufferedWriter w = Files.newBufferedWriter(checkpoint, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (Entry entry : done) {
+                w.write(entry.getId());
+                w.newLine();
+            }
+        }
+    }
+
+    /**
+     * Migrate all credentials.
+     * @return the number of entries which could not be migrated
+     */
+    private int run() throws IOException, InterruptedException {
+        // the source must not drop the hosts the target has just added
+        source = createAgent(from, to == NPMType.PLAIN);
+        target = createAgent(to, true);
+        verifier = createAgent(to, false);
+        try {
+            return migrate();
+        } finally {
+            close(verifier);
+            close(target);
+            close(source);
+        }
+    }
+
+    private int migrate() throws IOException, InterruptedException {
+        Set<String> finished = readCheckpoint();
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : enumerate()) {
+            if (!finished.contains(entry.getId())) {
+                entries.add(entry);
+            }
+        }
+        System.out.println("Migrating up to " + entries.size() + " credentials from " + from.getName() + " to "
+                + to.getName() + (finished.isEmpty() ? "" : ", " + finished.size() + " done before"));
+        int failed = 0;
+        int migrated = 0;
+        List<Entry> movedLogins = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int start = 0; start < entries.size(); start += BATCH_SIZE) {
+                List<Entry> batch = entries.subList(start, Math.min(entries.size(), start + BATCH_SIZE));
+                List<Entry> copied = forAll(pool, batch, this::copy);
+                flush(target);
+                List<Entry> verified = forAll(pool, copied, this::verify);
+                for (Entry entry : copied) {
+                    if (!verified.contains(entry)) {
+                        System.err.println(entry + ": read back from " + to.getName() + " does not match");
+                    }
+                }
+                failed += copied.size() - verified.size();
+                if (deleteSource) {
+                    verified = forAll(pool, verified, entry -> {
+                        deleteFromSource(entry);
+                        return true;
+                    });
+                    flush(source);
+                    verified.stream().filter(e -> e.requestorType == RequestorType.SERVER
+                            && !OsmApi.getOsmApi().getHost().equals(e.host)).forEach(movedLogins::add);
+                }
+                migrated += verified.size();
+                writeCheckpoint(verified);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        if (to != NPMType.PLAIN) {
+            failed += checkPatterns(movedLogins);
+        }
+        Preferences.main().save();
+        System.out.println("Migrated " + migrated + " credentials, " + failed + " failed");
+        return failed;
+    }
+
+    /**
+     * Check that the moved family logins are in the host index in the preferences, and read
+     * them back through the verifier again, past its cache.
+     * @return the number of patterns which cannot be read back
+     */
+    private int checkPatterns(List<Entry> movedLogins) {
+        HostCredentialIndex index = new HostCredentialIndex();
+        verifier.purgeCredentialsCache(RequestorType.SERVER);
+        int failed = 0;
+        for (Entry entry : movedLogins) {
+            if (!HostCredentialIndex.isPattern(entry.host)) {
+                continue;
+            }
+            try {
+                PasswordAuthentication auth = verifier.lookup(entry.requestorType, entry.host);
+                if (entry.host.equals(index.match(entry.host)) && auth != null
+                        && Objects.equals(copiedLogins.get(entry.host), auth.getUserName())) {
+                    continue;
+                }
+                System.err.println(entry + ": family login not found in " + to.getName() + " after the migration");
+            } catch (CredentialsAgentException e) {
+                System.err.println(entry + ": " + e);
+            }
+            failed++;
+        }
+        return failed;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: CredentialsMigrationTool --from <type> --to <type> [--delete-source]"
+                + " [--checkpoint <file>] [--threads <n>] [--host <server host>]...");
+        StringBuilder types = new StringBuilder("Types:");
+        for (NPMType t : NPMType.values()) {
+            types.append(' ').append(t.toPrefString());
+        }
+        System.err.println(types);
+        System.exit(2);
+    }
+
+    /**
+     * Run the migration with the preferences of the current user.
+     * @param args command line arguments, see {@link #usage()}
+     * @throws Exception if the migration cannot be run
+     */
+    public static void main(String[] args) throws Exception {
+        NPMType from = null;
+        NPMType to = null;
+        boolean deleteSource = false;
+        Path checkpoint = null;
+        int threads = 4;
+        List<String> hosts = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--delete-source".equals(arg)) {
+                deleteSource = true;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                usage();
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--from":
+                    from = NPMType.fromPrefString(value);
+                    break;
+                case "--to":
+                    to = NPMType.fromPrefString(value);
+                    break;
+                case "--checkpoint":
+                    checkpoint = Paths.get(value);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--host":
+                    hosts.add(value);
+                    break;
+                default:
+                    usage();
+            }
+        }
+        if (from == null || to == null || from == to || threads < 1) {
+            usage();
+        }
+        Config.setBaseDirectoriesProvider(JosmBaseDirectories.getInstance());
+        Config.setUrlsProvider(JosmUrls.getInstance());
+        Config.setPreferencesInstance(Preferences.main());
+        Preferences.main().init(false);
+        int failed = new CredentialsMigrationTool(from, to, deleteSource, checkpoint, threads, hosts).run();
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,127 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.lang.StackWalker.StackFrame;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import javax.swing.SwingUtilities;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Diagnostic mode which finds keyring and credentials calls blocking the Swing event dispatch thread.
+ * <p>
+ * Enabled with the preference {@code plugins.native-password-manager.edt-detector}. Calls on the EDT
+ * which take longer than {@code plugins.native-password-manager.edt-detector.threshold} ms (default 50)
+ * are recorded with the stack of their caller. The first call from each stack is logged as warning,
+ * so it shows up in the JOSM status report; the totals per operation and stack are logged on exit.
+ * <p>
+ * Calls which are fast, or not on the EDT, cost a volatile read and a thread check; stacks are only
+ * captured for slow calls.
+ */
+public final class EdtBlockingDetector {
+
+    private static final String NPM = "Native Password Manager Plugin: ";
+    private static final String PREF_ENABLED = NPMPlugin.NPMPLUGIN_KEY + "edt-detector";
+    private static final String PREF_THRESHOLD = NPMPlugin.NPMPLUGIN_KEY + "edt-detector.threshold";
+    private static final int MAX_FRAMES = 16;
+
+    /** slow calls of one operation from one stack */
+    private static final class SlowCall {
+        final String operation;
+        final String stack;
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        SlowCall(String operation, String stack) {
+            this.operation = operation;
+            this.stack = stack;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s: %d calls, total %d ms, max %d ms, at%n\tat %s", operation, count.sum(),
+                    TimeUnit.NANOSECONDS.toMillis(totalNanos.sum()), TimeUnit.NANOSECONDS.toMillis(maxNanos.get()), stack);
+        }
+    }
+
+    private static final Map<String, SlowCall> SLOW_CALLS = new ConcurrentHashMap<>();
+    /** the threshold in nanoseconds, -1 if disabled, {@link Long#MIN_VALUE} until read from the preferences */
+    private static volatile long threshold = Long.MIN_VALUE;
+
+    private EdtBlockingDetector() {
+        // Hide default constructor for utilities classes
+    }
+
+    private static long getThreshold() {
+        long t = threshold;
+        if (t == Long.MIN_VALUE) {
+            synchronized (EdtBlockingDetector.class) {
+                t = threshold;
+                if (t == Long.MIN_VALUE) {
+                    t = Config.getPref().getBoolean(PREF_ENABLED, false)
+                            ? TimeUnit.MILLISECONDS.toNanos(Config.getPref().getLong(PREF_THRESHOLD, 50)) : -1;
+                    if (t >= 0) {
+                        Runtime.getRuntime().addShutdownHook(new Thread(EdtBlockingDetector::logReport, "npm-edt-report"));
+                    }
+                    threshold = t;
+                }
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Record a call if it ran on the EDT for longer than the threshold.
+     * @param operation the name of the call, e.g. {@code lookup}
+     * @param startNanos the {@link System#nanoTime()} at the start of the call
+     */
+    public static void check(String operation, long startNanos) {
+        long t = getThreshold();
+        if (t < 0 || !SwingUtilities.isEventDispatchThread()) {
+            return;
+        }
+        long nanos = System.nanoTime() - startNanos;
+        if (nanos < t) {
+            return;
+        }
+        // the first frame is the measured call itself
+        String stack = StackWalker.getInstance().walk(frames -> frames.skip(1).limit(MAX_FRAMES)
+                .map(StackFrame::toString).collect(Collectors.joining(String.format("%n\tat "))));
+        SlowCall call = SLOW_CALLS.computeIfAbsent(operation + '\n' + stack, k -> new SlowCall(operation, stack));
+        call.count.increment();
+        call.totalNanos.add(nanos);
+        call.maxNanos.accumulate(nanos);
+        if (call.count.sum() == 1) {
+            Logging.warn(NPM + operation + " blocked the EDT for " + TimeUnit.NANOSECONDS.toMillis(nanos)
+                    + " ms, at" + System.lineSeparator() + "\tat " + stack);
+        }
+    }
+
+    /**
+     * Get the slow calls recorded so far, the ones which blocked the EDT longest in total first.
+     * @return the report, empty if there were no slow calls
+     */
+    public static String getReport() {
+        List<SlowCall> calls = new ArrayList<>(SLOW_CALLS.values());
+        calls.sort(Comparator.comparingLong((SlowCall c) -> c.totalNanos.sum()).reversed());
+        return calls.stream().map(SlowCall::toString).collect(Collectors.joining(System.lineSeparator()));
+    }
+
+    private static void logReport() {
+        if (!SLOW_CALLS.isEmpty()) {
+            Logging.info(NPM + "Calls which blocked the EDT:" + System.lineSeparator() + getReport());
+        }
+    }
+}
@@ -0,0 +1,208 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Remembers for which hosts a login is stored in the keyring.
+ * <p>
+ * An entry is either a host name, or a pattern like {@code *.example.com} which matches every
+ * host below {@code example.com}, so that one login serves a whole family of tile or WMS servers.
+ * The entries are kept in a trie of the reversed host labels ({@code com}, {@code example}, {@code tiles}),
+ * so a lookup costs one step per label. An exact entry wins over a pattern, and a longer pattern
+ * over a shorter one. Only host names and patterns are stored, in the JOSM preferences.
+ * An index which is not persistent reads them, but keeps its changes to itself.
+ */
+public class HostCredentialIndex {
+
+    private static final String PREF_KEY = NPMPlugin.NPMPLUGIN_KEY + "host-index";
+    private static final String WILDCARD = "*.";
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>();
+        /** a login is stored for the host ending at this node */
+        boolean exact;
+        /** a login is stored for all hosts below this node */
+        boolean wildcard;
+    }
+
+    private final boolean persistent;
+    private Node root;
+
+    /**
+     * Create a new {@link HostCredentialIndex} which saves its changes to the preferences
+     */
+    public HostCredentialIndex() {
+        this(true);
+    }
+
+    /**
+     * Create a new {@link HostCredentialIndex}
+     * @param persistent whether changes are saved to the preferences, false for an agent which must not
+     * overwrite the index of another one, e.g. the source of a migration
+     */
+    HostCredentialIndex(boolean persistent) {
+        this.persistent = persistent;
+    }
+
+    private synchronized Node getRoot() {
+        if (root == null) {
+            root = new Node();
+            for (String entry : Config.getPref().getList(PREF_KEY, Collections.emptyList())) {
+                add(entry);
+            }
+        }
+        return root;
+    }
+
+    private static String[] reversedLabels(String host) {
+        String[] labels = host.toLowerCase(Locale.ROOT).split("\\.", -1);
+        Collections.reverse(Arrays.asList(labels));
+        return labels;
+    }
+
+    /**
+     * Find the entry whose login applies to a host.
+     * @param host the host
+     * @return the host itself or the most specific matching pattern, or null if no login is stored for the host
+     */
+    public synchronized String match(String host) {
+        String[] labels = reversedLabels(host);
+        Node node = getRoot();
+        String pattern = null;
+        for (int i = 0; i < labels.length; i++) {
+            node = node.children.get(labels[i]);
+            if (node == null) {
+                return pattern;
+            }
+            if (node.wildcard && i < labels.length - 1) {
+                pattern = WILDCARD + join(labels, i);
+            }
+        }
+        return node.exact ? host.toLowerCase(Locale.ROOT) : pattern;
+    }
+
+    private static String join(String[] reversed, int last) {
+        StringBuilder sb = new StringBuilder(reversed[last]);
+        for (int i = last - 1; i >= 0; i--) {
+            sb.append('.').append(reversed[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Check whether an entry is a pattern.
+     * @param entry the host or pattern
+     * @return true for a pattern like {@code *.example.com}
+     */
+    public static boolean isPattern(String entry) {
+        return entry.startsWith(WILDCARD);
+    }
+
+    /**
+     * Check whether a pattern applies to a host, like {@link #match} does for the entries.
+     * @param pattern the pattern like {@code *.example.com}
+     * @param host the host
+     * @return true if the host is below the domain of the pattern
+     */
+    public static boolean matches(String pattern, String host) {
+        return isPattern(pattern) && !isPattern(host)
+                && host.toLowerCase(Locale.ROOT).endsWith(pattern.substring(1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Get all entries.
+     * @return the hosts and patterns, sorted
+     */
+    public synchronized Set<String> getEntries() {
+        Set<String> entries = new TreeSet<>();
+        collect(getRoot(), new ArrayList<>(), entries);
+        return entries;
+    }
+
+    private static void collect(Node node, List<String> path, Set<String> entries) {
+        if (!path.isEmpty()) {
+            String[] labels = path.toArray(new String[0]);
+            String host = join(labels, labels.length - 1);
+            if (node.exact) {
+                entries.add(host);
+            }
+            if (node.wildcard) {
+                entries.add(WILDCARD + host);
+            }
+        }
+        for (Map.Entry<String, Node> child : node.children.entrySet()) {
+            path.add(child.getKey());
+            collect(child.getValue(), path, entries);
+            path.remove(path.size() - 1);
+        }
+    }
+
+    /**
+     * Record that a login is stored for a host or pattern.
+     * @param entry the host or pattern like {@code *.example.com}
+     */
+    public synchronized void put(String entry) {
+        getRoot();
+        if (add(entry)) {
+            save();
+        }
+    }
+
+    private boolean add(String entry) {
+        boolean pattern = isPattern(entry);
+        Node node = root;
+        for (String label : reversedLabels(pattern ? entry.substring(WILDCARD.length()) : entry)) {
+            node = node.children.computeIfAbsent(label, k -> new Node());
+        }
+        boolean changed = pattern ? !node.wildcard : !node.exact;
+        if (pattern) {
+            node.wildcard = true;
+        } else {
+            node.exact = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Record that no login is stored for a host or pattern anymore.
+     * @param entry the host or pattern like {@code *.example.com}
+     */
+    public synchronized void remove(String entry) {
+        boolean pattern = isPattern(entry);
+        Node node = getRoot();
+        for (String label : reversedLabels(pattern ? entry.substring(WILDCARD.length()) : entry)) {
+            node = node.children.get(label);
+            if (node == null) {
+                return;
+            }
+        }
+        if (pattern ? node.wildcard : node.exact) {
+            if (pattern) {
+                node.wildcard = false;
+            } else {
+                node.exact = false;
+            }
+            // empty branches are left in the trie, they are dropped when the index is loaded the next time
+            save();
+        }
+    }
+
+    private void save() {
+        if (!persistent) {
+            return;
+        }
+        List<String> entries = new ArrayList<>(getEntries());
+        Config.getPref().putList(PREF_KEY, entries.isEmpty() ? null : entries);
+    }
+}
@@ -17,6 +17,7 @@ import java.net.Authenticator.RequestorType;
 import java.net.PasswordAuthentication;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -32,14 +33,15 @@ import javax.swing.JDialog;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JRadioButton;
 import javax.swing.JSeparator;
 import javax.swing.KeyStroke;
 import javax.swing.SwingConstants;
+import javax.swing.SwingWorker;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.EtchedBorder;
 
-import org.netbeans.spi.keyring.KeyringProvider;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.util.WindowGeometry;
 import org.openstreetmap.josm.gui.widgets.HtmlPanel;
@@ -49,7 +51,6 @@ import org.openstreetmap.josm.io.auth.CredentialsManager;
 import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.tools.ImageProvider;
 import org.openstreetmap.josm.tools.Logging;
-import org.openstreetmap.josm.tools.PlatformManager;
 
 public class InitializationWizard extends JDialog {
 
@@ -67,7 +68,37 @@ public class InitializationWizard extends JDialog {
         super(JOptionPane.getFrameForComponent(MainApplication.getMainFrame()),
                 tr("Native password manager plugin"), ModalityType.DOCUMENT_MODAL);
         build();
-        NPMType npm = detectNativePasswordManager();
+        NPMType remembered = BackendDetector.getRememberedResult();
+        if (remembered != null) {
+            showFirstPanel(remembered);
+        } else {
+            // probing may take seconds, so show progress and let the probes run off the EDT
+            WizardPanel detectionPanel = new DetectionPanel();
+            panelIndex = 0;
+            panels.add(detectionPanel);
+            cardPanel.add(detectionPanel.getPanel(), detectionPanel.getId());
+            btnBack.setEnabled(false);
+            btnNext.setEnabled(false);
+            new SwingWorker<NPMType, Void>() {
+                @Override
+                protected NPMType doInBackground() {
+                    return BackendDetector.detect();
+                }
+
+                @Override
+                protected void done() {
+                    try {
+                        showFirstPanel(get());
+                    } catch (InterruptedException | ExecutionException e) {
+                        Logging.error(e);
+                        showFirstPanel(null);
+                    }
+                }
+            }.execute();
+        }
+    }
+
+    private void showFirstPanel(NPMType npm) {
         WizardPanel firstPanel;
         if (npm == null) {
             firstPanel = new NothingFoundPanel();
@@ -75,9 +106,11 @@ public class InitializationWizard extends JDialog {
             firstPanel = new SelectionPanel(npm, this);
         }
         panelIndex = 0;
+        panels.clear();
         panels.add(firstPanel);
         cardPanel.add(firstPanel.getPanel(), firstPanel.getId());
-        
+        cardLayout.show(cardPanel, firstPanel.getId());
+        btnNext.setEnabled(true);
         updateButtons();
     }
     
@@ -176,6 +209,49 @@ public class InitializationWizard extends JDialog {
         protected abstract JPanel getContentPanel();
     }
     
+    private static class DetectionPanel extends AbstractWizardPanel {
+
+        @Override
+        public boolean isLast() {
+            return false;
+        }
+
+        @Override
+        public WizardPanel provideNext() {
+            return null;
+        }
+
+        @Override
+        public void onOkAction() {
+            // nothing selected yet
+        }
+
+        @Override
+        protected JPanel getContentPanel() {
+            JPanel p = new JPanel();
+            GroupLayout layout = new GroupLayout(p);
+            p.setLayout(layout);
+
+            HtmlPanel intro = new HtmlPanel("<html>"+tr("Looking for a native password manager...")+"</html>");
+            JProgressBar progress = new JProgressBar();
+            progress.setIndeterminate(true);
+
+            layout.setHorizontalGroup(
+                layout.createParallelGroup()
+                    .addComponent(intro)
+                    .addComponent(progress)
+            );
+
+            layout.setVerticalGroup(
+                layout.createSequentialGroup()
+                    .addComponent(intro, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
+                    .addComponent(progress, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
+            );
+
+            return p;
+        }
+    }
+
     private static class NothingFoundPanel extends AbstractWizardPanel {
 
         JCheckBox cbDoNotShowAgain;
@@ -366,31 +442,7 @@ public class InitializationWizard extends JDialog {
         }
     }
 
-    private static final String NPM = "Native Password Manager Plugin: ";
-
-    private static NPMType detectNativePasswordManager() {
-        NPMType[] potentialManagers;
-        if (PlatformManager.isPlatformWindows()) {
-            potentialManagers = new NPMType[] { NPMType.CRYPT32 };
-        } else if (PlatformManager.isPlatformOsx()) {
-            potentialManagers = new NPMType[] { NPMType.KEYCHAIN };
-        } else if (PlatformManager.isPlatformUnixoid()) {
-            potentialManagers = new NPMType[] { NPMType.GNOME_KEYRING, NPMType.KWALLET };
-        } else
-            throw new AssertionError();
-
-        for (NPMType manager : potentialManagers) {
-            Logging.info(NPM + "Looking for " + manager.getName());
-            KeyringProvider provider = manager.getProvider();
-            if (provider.enabled()) {
-                Logging.info(NPM + "Found " + manager.getName());
-                return manager;
-            }
-        }
-        return null;
-    }
-    
-    private static boolean hasUnprotectedCedentials() {
+    static boolean hasUnprotectedCedentials() {
         return 
             Config.getPref().get("osm-server.username", null) != null ||
             Config.getPref().get("osm-server.password", null) != null ||
@@ -0,0 +1,220 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.netbeans.modules.keyring.utils.Utils;
+import org.netbeans.spi.keyring.AsyncKeyringProvider;
+import org.netbeans.spi.keyring.KeyringProvider;
+import org.openstreetmap.josm.plugins.npm.KeyringMetrics.Operation;
+
+/**
+ * Records every call to a {@link KeyringProvider} in {@link KeyringMetrics}.
+ */
+public class InstrumentedKeyringProvider implements KeyringProvider {
+
+    /**
+     * Records the calls to an {@link AsyncKeyringProvider}, an asynchronous call lasts until its future completes.
+     */
+    private static class Async extends InstrumentedKeyringProvider implements AsyncKeyringProvider {
+
+        private final AsyncKeyringProvider provider;
+        private final KeyringMetrics metrics;
+
+        Async(AsyncKeyringProvider provider, KeyringMetrics metrics) {
+            super(provider, metrics);
+            this.provider = provider;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public CompletableFuture<Map<String, char[]>> readAllAsync(Collection<String> keys) {
+            long start = System.nanoTime();
+            KeyringEvent event = begin();
+            return provider.readAllAsync(keys).whenComplete((values, e) -> {
+                int hits = values == null ? 0 : values.size();
+                metrics.record(Operation.READ_ALL, System.nanoTime() - start, hits,
+                        values == null ? 0 : keys.size() - hits, e != null);
+                commit(event, Operation.READ_ALL, keys, hits, e != null);
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> saveAllAsync(Map<String, char[]> passwords, Map<String, String> descriptions) {
+            long start = System.nanoTime();
+            KeyringEvent event = begin();
+            return provider.saveAllAsync(passwords, descriptions).whenComplete((v, e) -> {
+                metrics.record(Operation.SAVE_ALL, System.nanoTime() - start, 0, 0, e != null);
+                commit(event, Operation.SAVE_ALL, passwords.keySet(), 0, e != null);
+            });
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteAllAsync(Collection<String> keys) {
+            long start = System.nanoTime();
+            KeyringEvent event = begin();
+            return provider.deleteAllAsync(keys).whenComplete((v, e) -> {
+                metrics.record(Operation.DELETE_ALL, System.nanoTime() - start, 0, 0, e != null);
+                commit(event, Operation.DELETE_ALL, keys, 0, e != null);
+            });
+        }
+    }
+
+    private final KeyringProvider provider;
+    private final KeyringMetrics metrics;
+
+    /**
+     * Create a new {@link InstrumentedKeyringProvider}, which is an {@link AsyncKeyringProvider}
+     * if the measured provider is one.
+     * @param provider the provider to measure
+     * @param metrics where to record the calls
+     * @return the instrumented provider
+     */
+    public static InstrumentedKeyringProvider create(KeyringProvider provider, KeyringMetrics metrics) {
+        if (provider instanceof AsyncKeyringProvider) {
+            return new Async((AsyncKeyringProvider) provider, metrics);
+        }
+        return new InstrumentedKeyringProvider(provider, metrics);
+    }
+
+    /**
+     * Create a new {@link InstrumentedKeyringProvider}
+     * @param provider the provider to measure
+     * @param metrics where to record the calls
+     */
+    public InstrumentedKeyringProvider(KeyringProvider provider, KeyringMetrics metrics) {
+        this.provider = provider;
+        this.metrics = metrics;
+    }
+
+    private static KeyringEvent begin() {
+        KeyringEvent event = new KeyringEvent();
+        if (event.isEnabled()) {
+            // only worth the atomic read while recording
+            event.subprocesses = Utils.getProcessCount();
+        }
+        event.begin();
+        return event;
+    }
+
+    void commit(KeyringEvent event, Operation operation, Collection<String> keys, int hits, boolean failed) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.backend = metrics.getBackend();
+            event.operation = operation.toString();
+            event.keys = KeyringEvent.hash(keys);
+            event.keyCount = keys.size();
+            event.hits = hits;
+            event.subprocesses = Utils.getProcessCount() - event.subprocesses;
+            event.failed = failed;
+            event.commit();
+        }
+    }
+
+    @Override
+    public boolean enabled() {
+        long start = System.nanoTime();
+        KeyringEvent event = begin();
+        boolean failed = true;
+        try {
+            boolean enabled = provider.enabled();
+            failed = false;
+            return enabled;
+        } finally {
+            metrics.record(Operation.ENABLED, System.nanoTime() - start, 0, 0, failed);
+            commit(event, Operation.ENABLED, Collections.emptyList(), 0, failed);
+        }
+    }
+
+    @Override
+    public char[] read(String key) {
+        long start = System.nanoTime();
+        KeyringEvent event = begin();
+        char[] value = null;
+        boolean failed = true;
+        try {
+            value = provider.read(key);
+            failed = false;
+            return value;
+        } finally {
+            metrics.record(Operation.READ, System.nanoTime() - start, value != null ? 1 : 0,
+                    value == null && !failed ? 1 : 0, failed);
+            commit(event, Operation.READ, Collections.singletonList(key), value != null ? 1 : 0, failed);
+        }
+    }
+
+    @Override
+    public Map<String, char[]> readAll(Collection<String> keys) {
+        long start = System.nanoTime();
+        KeyringEvent event = begin();
+        Map<String, char[]> values = null;
+        try {
+            values = provider.readAll(keys);
+            return values;
+        } finally {
+            int hits = values == null ? 0 : values.size();
+            metrics.record(Operation.READ_ALL, System.nanoTime() - start, hits,
+                    values == null ? 0 : keys.size() - hits, values == null);
+            commit(event, Operation.READ_ALL, keys, hits, values == null);
+        }
+    }
+
+    @Override
+    public void save(String key, char[] password, String description) {
+        long start = System.nanoTime();
+        KeyringEvent event = begin();
+        boolean failed = true;
+        try {
+            provider.save(key, password, description);
+            failed = false;
+        } finally {
+            metrics.record(Operation.SAVE, System.nanoTime() - start, 0, 0, failed);
+            commit(event, Operation.SAVE, Collections.singletonList(key), 0, failed);
+        }
+    }
+
+    @Override
+    public void saveAll(Map<String, char[]> passwords, Map<String, String> descriptions) {
+        long start = System.nanoTime();
+        KeyringEvent event = begin();
+        boolean failed = true;
+        try {
+            provider.saveAll(passwords, descriptions);
+            failed = false;
+        } finally {
+            metrics.record(Operation.SAVE_ALL, System.nanoTime() - start, 0, 0, failed);
+            commit(event, Operation.SAVE_ALL, passwords.keySet(), 0, failed);
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        long start = System.nanoTime();
+        KeyringEvent event = begin();
+        boolean failed = true;
+        try {
+            provider.delete(key);
+            failed = false;
+        } finally {
+            metrics.record(Operation.DELETE, System.nanoTime() - start, 0, 0, failed);
+            commit(event, Operation.DELETE, Collections.singletonList(key), 0, failed);
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<String> keys) {
+        long start = System.nanoTime();
+        KeyringEvent event = begin();
+        boolean failed = true;
+        try {
+            provider.deleteAll(keys);
+            failed = false;
+        } finally {
+            metrics.record(Operation.DELETE_ALL, System.nanoTime() - start, 0, 0, failed);
+            commit(event, Operation.DELETE_ALL, keys, 0, failed);
+        }
+    }
+}
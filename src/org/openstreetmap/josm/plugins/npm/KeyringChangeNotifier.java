@@ -0,0 +1,181 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Tells JOSM instances running at the same time that one of them changed credentials in the keyring.
+ * <p>
+ * The instances share a small file holding a generation counter, which each instance increments
+ * under a file lock after it has written to the keyring. Every instance watches the file and runs
+ * its change handler when the counter differs from the last value it has seen, so caches are only
+ * invalidated when something was actually changed. Changes made outside of JOSM, e.g. in the
+ * keyring manager of the desktop, are not noticed.
+ * <p>
+ * Where the platform has no native file notification, the JDK polls the directory, so other
+ * instances may take a few seconds to notice a change.
+ */
+public class KeyringChangeNotifier {
+
+    private static final String NPM = "Native Password Manager Plugin: ";
+    /** file locks are held by the whole JVM, so notifiers in the same JVM must not lock at the same time */
+    private static final Object FILE_LOCK = new Object();
+
+    private final Path file;
+    private final Runnable changeHandler;
+    private long generation;
+    private WatchService watchService;
+
+    /**
+     * Create a new {@link KeyringChangeNotifier}
+     * @param file the file with the generation counter, shared by all instances
+     * @param changeHandler called when another instance changed the keyring, on the thread which noticed it
+     */
+    public KeyringChangeNotifier(Path file, Runnable changeHandler) {
+        this.file = file;
+        this.changeHandler = changeHandler;
+    }
+
+    /**
+     * Start watching for changes of other instances.
+     */
+    public synchronized void start() {
+        if (watchService != null) {
+            return;
+        }
+        try {
+            generation = access(false);
+            watchService = file.getFileSystem().newWatchService();
+            file.getParent().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            Logging.warn(NPM + "Cannot watch " + file + ", changes of other JOSM instances are not noticed: " + e);
+            return;
+        }
+        Thread t = new Thread(this::watchLoop, "npm-change-watch");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stop watching.
+     */
+    public synchronized void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                Logging.trace(e);
+            }
+            watchService = null;
+        }
+    }
+
+    /**
+     * Tell the other instances that the keyring was changed. Call this after the change has been written.
+     */
+    public void publish() {
+        try {
+            long previous;
+            synchronized (this) {
+                previous = generation;
+                generation = access(true);
+            }
+            if (generation != previous + 1) {
+                // another instance changed the keyring and we have not noticed yet
+                changeHandler.run();
+            }
+        } catch (IOException e) {
+            Logging.warn(NPM + "Cannot update " + file + ": " + e);
+        }
+    }
+
+    private void watchLoop() {
+        WatchService service;
+        synchronized (this) {
+            service = watchService;
+        }
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean relevant = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    relevant |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || file.getFileName().equals(event.context());
+                }
+                key.reset();
+                if (relevant) {
+                    check();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            Logging.trace(e);
+        }
+    }
+
+    private void check() {
+        boolean changed;
+        try {
+            synchronized (this) {
+                long current = access(false);
+                changed = current != generation;
+                generation = current;
+            }
+        } catch (IOException e) {
+            Logging.warn(NPM + "Cannot read " + file + ": " + e);
+            return;
+        }
+        if (changed) {
+            Logging.debug(NPM + "Another JOSM instance changed the keyring, dropping cached credentials");
+            changeHandler.run();
+        }
+    }
+
+    /**
+     * Read the generation, and increment it if requested.
+     * @return the generation after the access
+     */
+    private long access(boolean increment) throws IOException {
+        synchronized (FILE_LOCK) {
+            return accessLocked(increment);
+        }
+    }
+
+    private long accessLocked(boolean increment) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the lock is released when the channel is closed
+            channel.lock(0, Long.MAX_VALUE, !increment);
+            ByteBuffer buffer = ByteBuffer.allocate(32);
+            while (channel.read(buffer) > 0 && buffer.hasRemaining()) {
+                // read the whole counter
+            }
+            long value;
+            try {
+                value = Long.parseLong(new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII).trim());
+            } catch (NumberFormatException e) {
+                value = 0;
+            }
+            if (increment) {
+                value++;
+                channel.truncate(0);
+                channel.write(ByteBuffer.wrap(Long.toString(value).getBytes(StandardCharsets.US_ASCII)), 0);
+            }
+            return value;
+        }
+    }
+}
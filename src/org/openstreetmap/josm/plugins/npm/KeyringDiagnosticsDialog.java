@@ -0,0 +1,355 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Insets;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.AbstractAction;
+import javax.swing.Box;
+import javax.swing.BoxLayout;
+import javax.swing.JButton;
+import javax.swing.JComponent;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSeparator;
+import javax.swing.JTextArea;
+import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.border.EmptyBorder;
+
+import org.netbeans.modules.keyring.kde.KWalletProvider;
+import org.netbeans.spi.keyring.KeyringProvider;
+import org.openstreetmap.josm.gui.datatransfer.ClipboardUtils;
+import org.openstreetmap.josm.gui.util.WindowGeometry;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.ImageProvider;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Shows how well the password manager works, for reports about a slow or failing password manager.
+ * <p>
+ * The self-test stores, reads back and deletes a throwaway entry a few times, through the same
+ * layers as the credentials of JOSM. The report adds the latency percentiles of all keyring calls
+ * so far, the share of lookups answered from the caches, the version of the backend and the calls
+ * which blocked the user interface. It contains neither credentials nor key names, so it can be
+ * copied into a bug report as it is.
+ */
+public class KeyringDiagnosticsDialog extends JDialog {
+
+    private static final int ROUNDS = 10;
+    private static final String SELF_TEST_KEY = "JOSM/Native Password Manager/self-test/";
+
+    /** the steps of one self-test round */
+    private enum Step {
+        SAVE, READ, DELETE;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private final NPMCredentialsAgent agent;
+    private final NPMType type;
+    private final JTextArea txtReport = new JTextArea(24, 90);
+    private final JLabel lblStatus = new JLabel(" ");
+    private final JButton btnSelfTest;
+    private SwingWorker<String, Void> selfTest;
+    /** the result of the last self-test, null if it has not been run */
+    private String selfTestResult;
+
+    /**
+     * Create a new {@link KeyringDiagnosticsDialog}
+     * @param parent the component which opens the dialog
+     * @param agent the credentials agent in use
+     * @param type the password manager of the agent
+     */
+    public KeyringDiagnosticsDialog(Component parent, NPMCredentialsAgent agent, NPMType type) {
+        super(SwingUtilities.getWindowAncestor(parent), tr("Password manager diagnostics"), ModalityType.DOCUMENT_MODAL);
+        this.agent = agent;
+        this.type = type;
+        txtReport.setEditable(false);
+        txtReport.setFont(new Font(Font.MONOSPACED, Font.PLAIN, txtReport.getFont().getSize()));
+        btnSelfTest = new JButton(new SelfTestAction());
+        build();
+        updateReport();
+    }
+
+    private void build() {
+        getContentPane().setLayout(new BorderLayout());
+        getRootPane().getInputMap(JComponent.WHEN_ANCESTOR_OF_FOCUSED_COMPONENT).put(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), "close");
+        getRootPane().getActionMap().put("close", new CloseAction());
+
+        JScrollPane scroll = new JScrollPane(txtReport);
+        scroll.setBorder(new EmptyBorder(new Insets(5, 10, 5, 10)));
+        getContentPane().add(scroll, BorderLayout.CENTER);
+
+        Box buttonsBox = new Box(BoxLayout.X_AXIS);
+        buttonsBox.setBorder(new EmptyBorder(new Insets(5, 10, 5, 10)));
+        buttonsBox.add(lblStatus);
+        buttonsBox.add(Box.createHorizontalGlue());
+        buttonsBox.add(Box.createHorizontalStrut(30));
+        buttonsBox.add(btnSelfTest);
+        buttonsBox.add(Box.createHorizontalStrut(10));
+        buttonsBox.add(new JButton(new CopyAction()));
+        buttonsBox.add(Box.createHorizontalStrut(10));
+        buttonsBox.add(new JButton(new CloseAction()));
+
+        JPanel buttonsPanel = new JPanel(new BorderLayout());
+        buttonsPanel.add(new JSeparator(), BorderLayout.NORTH);
+        buttonsPanel.add(buttonsBox, BorderLayout.CENTER);
+        getContentPane().add(buttonsPanel, BorderLayout.SOUTH);
+    }
+
+    /**
+     * Show the dialog.
+     */
+    public void showDialog() {
+        pack();
+        setVisible(true);
+    }
+
+    @Override
+    public void setVisible(boolean visible) {
+        if (visible) {
+            new WindowGeometry(getClass().getName() + ".geometry",
+                    WindowGeometry.centerInWindow(getParent(), new Dimension(800, 500))).applySafe(this);
+        } else if (isShowing()) {
+            new WindowGeometry(this).remember(getClass().getName() + ".geometry");
+            if (selfTest != null) {
+                selfTest.cancel(true);
+            }
+        }
+        super.setVisible(visible);
+    }
+
+    private void updateReport() {
+        txtReport.setText(getReport());
+        txtReport.setCaretPosition(0);
+    }
+
+    /**
+     * Get the diagnostics report.
+     * @return the report
+     */
+    String getReport() {
+        StringBuilder report = new StringBuilder("Native Password Manager Plugin diagnostics\n");
+        report.append("Password manager: ").append(type.getName()).append(" (").append(type.toPrefString()).append("), ")
+                .append(getBackendInfo()).append('\n');
+        String mirror = Config.getPref().get(NPMPlugin.NPMPLUGIN_KEY + "mirror", null);
+        if (mirror != null) {
+            report.append("Mirrored to: ").append(mirror).append('\n');
+        }
+        report.append("Java ").append(System.getProperty("java.version")).append(", ").append(System.getProperty("os.name"))
+                .append(' ').append(System.getProperty("os.version")).append(" (").append(System.getProperty("os.arch"))
+                .append(")\n\n");
+
+        long lookups = agent.getCacheLookups();
+        long hits = agent.getCacheHits();
+        report.append(String.format(Locale.ENGLISH, "Credentials lookups: %d, answered from the caches: %d (%.0f%%)\n",
+                lookups, hits, lookups == 0 ? 0.0 : 100.0 * hits / lookups));
+
+        report.append("\nKeyring calls since start:\n");
+        boolean any = false;
+        for (KeyringMetrics metrics : KeyringMetrics.all()) {
+            for (KeyringMetrics.OperationStats stats : metrics.snapshot()) {
+                report.append("  ").append(metrics.getBackend()).append(' ').append(stats).append('\n');
+                any = true;
+            }
+        }
+        if (!any) {
+            report.append("  none\n");
+        }
+
+        report.append('\n').append(selfTestResult != null ? selfTestResult : "Self-test: not run\n");
+
+        String edt = EdtBlockingDetector.getReport();
+        if (!edt.isEmpty()) {
+            report.append("\nCalls which blocked the EDT:\n").append(edt).append('\n');
+        }
+        return report.toString();
+    }
+
+    private String getBackendInfo() {
+        KeyringProvider provider = type.getProvider();
+        if (provider instanceof KWalletProvider) {
+            int version = ((KWalletProvider) provider).getKdeVersion();
+            return version < 0 ? "kwalletd not reached yet" : "kwalletd" + (version != 0 ? version : "");
+        }
+        // the other backends do not tell the version of the service behind them
+        return provider == null ? "no backend" : "backend " + provider.getClass().getSimpleName();
+    }
+
+    /**
+     * Store, read back and delete a throwaway entry, and time each step.
+     * <p>
+     * Runs below the write-behind layer of the agent, so that a failure ends up in the result
+     * and not in a notification that credentials could not be saved.
+     * @return the result, as part of the report
+     */
+    private String runSelfTest(SwingWorker<String, Void> worker) {
+        KeyringProvider keyring = agent.getKeyring();
+        String key = SELF_TEST_KEY + UUID.randomUUID();
+        char[] secret = UUID.randomUUID().toString().toCharArray();
+        Map<Step, List<Long>> durations = new EnumMap<>(Step.class);
+        for (Step step : Step.values()) {
+            durations.put(step, new ArrayList<>());
+        }
+        String error = null;
+        Step step = Step.SAVE;
+        int round = 0;
+        try {
+            for (; round < ROUNDS && !worker.isCancelled(); round++) {
+                step = Step.SAVE;
+                long start = System.nanoTime();
+                keyring.save(key, secret.clone(), tr("JOSM/Native Password Manager/Self-test"));
+                durations.get(step).add(System.nanoTime() - start);
+
+                step = Step.READ;
+                start = System.nanoTime();
+                char[] value = keyring.read(key);
+                durations.get(step).add(System.nanoTime() - start);
+                if (!Arrays.equals(value, secret)) {
+                    error = value == null ? "the stored entry was not found" : "a different value was read back";
+                    break;
+                }
+                Arrays.fill(value, '\0');
+
+                step = Step.DELETE;
+                start = System.nanoTime();
+                keyring.delete(key);
+                durations.get(step).add(System.nanoTime() - start);
+                worker.firePropertyChange("round", round, round + 1);
+            }
+        } catch (RuntimeException e) {
+            error = String.valueOf(e);
+        } finally {
+            Arrays.fill(secret, '\0');
+            if (error != null) {
+                // do not leave the entry behind, but do not wait for a keyring which already failed
+                CompletableFuture.runAsync(() -> keyring.delete(key)).whenComplete((v, e) -> { });
+            }
+        }
+
+        StringBuilder result = new StringBuilder(String.format(Locale.ENGLISH, "Self-test: %d of %d rounds\n", round, ROUNDS));
+        for (Step s : Step.values()) {
+            List<Long> list = durations.get(s);
+            if (!list.isEmpty()) {
+                Collections.sort(list);
+                result.append(String.format(Locale.ENGLISH, "  %s: p50 %.3f ms, p95 %.3f ms, p99 %.3f ms, max %.3f ms\n",
+                        s, percentile(list, 0.50) / 1e6, percentile(list, 0.95) / 1e6, percentile(list, 0.99) / 1e6,
+                        list.get(list.size() - 1) / 1e6));
+            }
+        }
+        if (error != null) {
+            result.append("  failed at ").append(step).append(" in round ").append(round + 1).append(": ").append(error).append('\n');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Nearest-rank percentile of sorted values.
+     */
+    private static long percentile(List<Long> sorted, double p) {
+        return sorted.get(Math.max(0, (int) Math.ceil(p * sorted.size()) - 1));
+    }
+
+    /**
+     * Run the self-test in the background.
+     */
+    class SelfTestAction extends AbstractAction {
+        SelfTestAction() {
+            putValue(NAME, tr("Run self-test"));
+            putValue(SHORT_DESCRIPTION, tr("Store, read and delete a test entry in the password manager, and measure how long it takes"));
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent evt) {
+            setEnabled(false);
+            lblStatus.setText(tr("Testing the password manager..."));
+            selfTest = new SwingWorker<String, Void>() {
+                @Override
+                protected String doInBackground() {
+                    return runSelfTest(this);
+                }
+
+                @Override
+                protected void done() {
+                    if (isCancelled()) {
+                        return;
+                    }
+                    try {
+                        selfTestResult = get();
+                        lblStatus.setText(tr("Self-test finished"));
+                    } catch (InterruptedException | ExecutionException e) {
+                        Logging.error(e);
+                        lblStatus.setText(tr("Self-test failed: {0}", e.getMessage()));
+                    }
+                    setEnabled(true);
+                    updateReport();
+                }
+            };
+            selfTest.addPropertyChangeListener(e -> {
+                if ("round".equals(e.getPropertyName())) {
+                    lblStatus.setText(tr("Testing the password manager... {0} of {1}", e.getNewValue(), ROUNDS));
+                }
+            });
+            selfTest.execute();
+        }
+    }
+
+    /**
+     * Copy the report to the clipboard.
+     */
+    class CopyAction extends AbstractAction {
+        CopyAction() {
+            putValue(NAME, tr("Copy report"));
+            putValue(SMALL_ICON, ImageProvider.get("copy"));
+            putValue(SHORT_DESCRIPTION, tr("Copy the report to the clipboard, e.g. for a bug report"));
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent evt) {
+            updateReport();
+            if (ClipboardUtils.copyString(txtReport.getText())) {
+                lblStatus.setText(tr("Report copied to the clipboard"));
+            }
+        }
+    }
+
+    /**
+     * Close the dialog.
+     */
+    class CloseAction extends AbstractAction {
+        CloseAction() {
+            putValue(NAME, tr("Close"));
+            putValue(SMALL_ICON, ImageProvider.get("cancel"));
+            putValue(SHORT_DESCRIPTION, tr("Close the dialog"));
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent evt) {
+            setVisible(false);
+        }
+    }
+}
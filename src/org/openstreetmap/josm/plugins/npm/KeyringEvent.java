@@ -0,0 +1,95 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.StringJoiner;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import org.openstreetmap.josm.tools.JosmRuntimeException;
+
+/**
+ * Flight recorder event for one call to a keyring backend, emitted by {@link InstrumentedKeyringProvider}.
+ * <p>
+ * Disabled by default. Key names are only recorded as truncated HMAC-SHA256 hashes with a random
+ * key of the session, so recordings can be shared without exposing which accounts are stored: the
+ * hashes match within one recording, but cannot be compared with hashes of guessed names.
+ */
+@Name("org.openstreetmap.josm.plugins.npm.Keyring")
+@Label("Keyring Operation")
+@Category({"JOSM", "Native Password Manager"})
+@Description("A call to the keyring backend")
+@Enabled(false)
+@StackTrace(false)
+final class KeyringEvent extends Event {
+
+    @Label("Backend")
+    String backend;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Key Hashes")
+    @Description("Truncated HMAC-SHA256 hashes of the key names, with a key of the session")
+    String keys;
+
+    @Label("Key Count")
+    int keyCount;
+
+    @Label("Hits")
+    int hits;
+
+    @Label("Subprocesses")
+    @Description("Number of external processes the backend started, e.g. qdbus for KWallet")
+    long subprocesses;
+
+    @Label("Failed")
+    boolean failed;
+
+    private static final String HMAC = "HmacSHA256";
+    /** random key of this session, never stored */
+    private static final SecretKeySpec SESSION_KEY;
+
+    static {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        SESSION_KEY = new SecretKeySpec(key, HMAC);
+    }
+
+    /**
+     * Hash key names or host names for recording.
+     * @param names the names
+     * @return the comma-separated hashes, 16 hex digits each
+     */
+    static String hash(Collection<String> names) {
+        Mac mac;
+        try {
+            mac = Mac.getInstance(HMAC);
+            mac.init(SESSION_KEY);
+        } catch (GeneralSecurityException e) {
+            throw new JosmRuntimeException(e);
+        }
+        StringJoiner joiner = new StringJoiner(",");
+        for (String name : names) {
+            byte[] hash = mac.doFinal(name.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) {
+                sb.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
+            }
+            joiner.add(sb);
+        }
+        return joiner.toString();
+    }
+}
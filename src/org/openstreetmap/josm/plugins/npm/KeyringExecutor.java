@@ -0,0 +1,408 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import org.netbeans.spi.keyring.AsyncKeyringProvider;
+import org.netbeans.spi.keyring.KeyringProvider;
+import org.openstreetmap.josm.tools.JosmRuntimeException;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Runs all calls to a {@link KeyringProvider} on one dedicated thread.
+ * <p>
+ * The {@link KeyringProvider} contract promises that providers are only
+ * called from one thread at a time, but JOSM authenticates on whatever thread
+ * needs the credentials. This class enforces the contract, and is the default
+ * {@link AsyncKeyringProvider} adapter for blocking providers. A provider which
+ * is an {@link AsyncKeyringProvider} itself is called directly instead.
+ * <p>
+ * Reads of the same keys that are in flight at the same time are merged into
+ * one backend call, whose result is handed to every waiting caller.
+ * Each blocking caller waits at most the given timeout; a caller which gives up does
+ * not cancel the backend call for the others. A call which times out throws a
+ * {@link KeyringBusyException}, so that callers can tell a keyring which is not
+ * available from one which has no entry for a key.
+ * <p>
+ * A backend call which hangs, e.g. on a password prompt nobody answers, cannot be
+ * interrupted, so the executor keeps it from taking the callers down with it:
+ * <ul>
+ * <li>at most the queue limit of calls wait for the worker, further calls fail at once;</li>
+ * <li>a call which has not started within the timeout is dropped, since its caller has given up;</li>
+ * <li>while the current call has been running for longer than the timeout, new calls fail at once.</li>
+ * </ul>
+ * Such calls fail like calls which time out. Only {@link #enabled()} answers false instead.
+ * Calls which wait for the user, like an unlock prompt, are run with {@link #interactAsync}
+ * and are exempt from the deadline.
+ */
+public class KeyringExecutor implements AsyncKeyringProvider {
+
+    /** Fails a call which the backend did not take or finish in time */
+    public static class KeyringBusyException extends JosmRuntimeException {
+        KeyringBusyException(String message) {
+            super(message);
+        }
+    }
+
+    private static final String NPM = "Native Password Manager Plugin: ";
+    private static final int DEFAULT_QUEUE_LIMIT = 64;
+
+    private final KeyringProvider provider;
+    private final AsyncKeyringProvider asyncProvider;
+    private final long timeout;
+    private final ExecutorService executor;
+    private final ConcurrentMap<List<String>, CompletableFuture<Map<String, char[]>>> pendingReads = new ConcurrentHashMap<>();
+    private volatile Thread worker;
+    /** the {@link System#nanoTime()} at which the current backend call started, 0 if idle */
+    private volatile long busySince;
+    private volatile boolean stuckReported;
+
+    /**
+     * Create a new {@link KeyringExecutor} with the default queue limit
+     * @param provider the provider to call
+     * @param timeout the maximum time in milliseconds a blocking caller waits for a result
+     */
+    public KeyringExecutor(KeyringProvider provider, long timeout) {
+        this(provider, timeout, DEFAULT_QUEUE_LIMIT);
+    }
+
+    /**
+     * Create a new {@link KeyringExecutor}
+     * @param provider the provider to call
+     * @param timeout the maximum time in milliseconds a blocking caller waits for a result
+     * @param queueLimit the maximum number of calls waiting for the backend
+     */
+    public KeyringExecutor(KeyringProvider provider, long timeout, int queueLimit) {
+        this.provider = provider;
+        this.asyncProvider = provider instanceof AsyncKeyringProvider ? (AsyncKeyringProvider) provider : null;
+        this.timeout = timeout;
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(queueLimit), r -> {
+            Thread t = new Thread(r, "npm-keyring");
+            t.setDaemon(true);
+            worker = t;
+            return t;
+        });
+    }
+
+    /**
+     * Get the maximum time a blocking caller waits for a result.
+     * @return the timeout in milliseconds
+     */
+    long getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public boolean enabled() {
+        try {
+            return checkEnabled();
+        } catch (KeyringBusyException e) {
+            Logging.trace(e);
+            return false;
+        }
+    }
+
+    /**
+     * Ask the backend whether it is available, like {@link #enabled()}, but tell a backend
+     * which does not answer from one which is not available.
+     * @return true if the backend is enabled
+     * @throws KeyringBusyException if the backend did not answer in time
+     */
+    public boolean checkEnabled() {
+        return await("enabled", () -> supply("enabled", provider::enabled));
+    }
+
+    @Override
+    public char[] read(String key) {
+        return readAll(Collections.singletonList(key)).get(key);
+    }
+
+    @Override
+    public Map<String, char[]> readAll(Collection<String> keys) {
+        return await("read", () -> readAllAsync(keys));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, char[]>> readAllAsync(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return CompletableFuture.completedFuture(new LinkedHashMap<>());
+        }
+        List<String> id = Collections.unmodifiableList(new ArrayList<>(keys));
+        if (Thread.currentThread() == worker) {
+            // a queued read of the same keys can only run after the current task, so do not wait for it
+            return readBackend(id);
+        }
+        // do not join a queued read which will only run after the stuck call
+        KeyringBusyException stuck = asyncProvider == null ? checkStuck("read") : null;
+        if (stuck != null) {
+            return CompletableFuture.failedFuture(stuck);
+        }
+        CompletableFuture<Map<String, char[]>> created = new CompletableFuture<>();
+        CompletableFuture<Map<String, char[]>> pending = pendingReads.putIfAbsent(id, created);
+        if (pending == null) {
+            pending = created;
+            try {
+                readBackend(id).whenComplete((values, e) -> {
+                    if (e != null) {
+                        created.completeExceptionally(e instanceof CompletionException && e.getCause() != null
+                                ? e.getCause() : e);
+                    } else {
+                        created.complete(values);
+                    }
+                    pendingReads.remove(id, created);
+                });
+            } catch (RuntimeException e) {
+                pendingReads.remove(id, created);
+                throw e;
+            }
+        }
+        // every caller gets its own copy, since the arrays may be nulled out afterwards
+        return pending.thenApply(shared -> {
+            Map<String, char[]> result = new LinkedHashMap<>();
+            shared.forEach((k, v) -> result.put(k, v.clone()));
+            return result;
+        });
+    }
+
+    private CompletableFuture<Map<String, char[]>> readBackend(List<String> keys) {
+        if (asyncProvider != null) {
+            return asyncProvider.readAllAsync(keys);
+        }
+        return supply("read", () -> {
+            if (keys.size() == 1) {
+                Map<String, char[]> result = new LinkedHashMap<>();
+                char[] value = provider.read(keys.get(0));
+                if (value != null) {
+                    result.put(keys.get(0), value);
+                }
+                return result;
+            }
+            return provider.readAll(keys);
+        });
+    }
+
+    @Override
+    public void save(String key, char[] password, String description) {
+        write("save", () -> saveAsync(key, password, description));
+    }
+
+    @Override
+    public void saveAll(Map<String, char[]> passwords, Map<String, String> descriptions) {
+        write("save", () -> saveAllAsync(passwords, descriptions));
+    }
+
+    @Override
+    public void delete(String key) {
+        write("delete", () -> deleteAsync(key));
+    }
+
+    @Override
+    public void deleteAll(Collection<String> keys) {
+        write("delete", () -> deleteAllAsync(keys));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveAsync(String key, char[] password, String description) {
+        invalidateReads();
+        if (asyncProvider != null) {
+            return asyncProvider.saveAsync(key, password, description);
+        }
+        return run("save", () -> provider.save(key, password, description));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveAllAsync(Map<String, char[]> passwords, Map<String, String> descriptions) {
+        invalidateReads();
+        if (asyncProvider != null) {
+            return asyncProvider.saveAllAsync(passwords, descriptions);
+        }
+        return run("save", () -> provider.saveAll(passwords, descriptions));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String key) {
+        invalidateReads();
+        if (asyncProvider != null) {
+            return asyncProvider.deleteAsync(key);
+        }
+        return run("delete", () -> provider.delete(key));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAllAsync(Collection<String> keys) {
+        invalidateReads();
+        if (asyncProvider != null) {
+            return asyncProvider.deleteAllAsync(keys);
+        }
+        return run("delete", () -> provider.deleteAll(keys));
+    }
+
+    /**
+     * Run another call of the backend which does not wait for the user, like a check whether it is
+     * locked, on the worker thread, with the same deadline as the keyring operations.
+     * @param <T> the type of the result
+     * @param operation the name of the operation, for the log
+     * @param task the call
+     * @return a future which completes with the result, or with a {@link KeyringBusyException}
+     * if the call was refused or did not finish within the timeout
+     */
+    public <T> CompletableFuture<T> callAsync(String operation, Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        supply(operation, task).orTimeout(timeout, TimeUnit.MILLISECONDS).whenComplete((value, e) -> {
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause instanceof TimeoutException) {
+                String message = "Keyring " + operation + " did not finish within " + timeout + " ms";
+                Logging.warn(NPM + message);
+                result.completeExceptionally(new KeyringBusyException(message));
+            } else if (cause != null) {
+                result.completeExceptionally(cause);
+            } else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Run a call which waits for the user, like an unlock prompt, on the worker thread.
+     * <p>
+     * Unlike the other calls it is not dropped when it has to wait longer than the timeout
+     * before it starts, and it may take up to its own limit. Callers which need the keyring
+     * afterwards should wait for it instead of queueing behind it.
+     * @param <T> the type of the result
+     * @param operation the name of the operation, for the log
+     * @param task the call
+     * @param limit the maximum time in milliseconds to wait for the user
+     * @return a future which completes with the result, or with a {@link TimeoutException} after the limit
+     */
+    public <T> CompletableFuture<T> interactAsync(String operation, Supplier<T> task, long limit) {
+        return supply(operation, task, false).orTimeout(limit, TimeUnit.MILLISECONDS);
+    }
+
+    private void invalidateReads() {
+        // reads queued before a write must not be joined by callers arriving after it
+        pendingReads.clear();
+    }
+
+    private void write(String operation, Supplier<CompletableFuture<Void>> call) {
+        await(operation, call);
+    }
+
+    private CompletableFuture<Void> run(String operation, Runnable task) {
+        return supply(operation, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Run a task on the worker thread, or right away if already there.
+     * Fails at once if the worker is stuck or too many tasks are waiting for it.
+     */
+    private <T> CompletableFuture<T> supply(String operation, Supplier<T> task) {
+        return supply(operation, task, true);
+    }
+
+    private <T> CompletableFuture<T> supply(String operation, Supplier<T> task, boolean dropLate) {
+        if (Thread.currentThread() == worker) {
+            try {
+                return CompletableFuture.completedFuture(task.get());
+            } catch (RuntimeException | Error e) { // NOPMD
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        KeyringBusyException stuck = checkStuck(operation);
+        if (stuck != null) {
+            return CompletableFuture.failedFuture(stuck);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long start = System.nanoTime();
+                if (dropLate && start - deadline >= 0) {
+                    String message = "Keyring " + operation + " dropped, it waited longer than " + timeout + " ms";
+                    Logging.warn(NPM + message);
+                    throw new KeyringBusyException(message);
+                }
+                busySince = start;
+                try {
+                    return task.get();
+                } finally {
+                    busySince = 0;
+                    stuckReported = false;
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            String message = "Too many keyring calls waiting, cannot " + operation;
+            Logging.warn(NPM + message);
+            return CompletableFuture.failedFuture(new KeyringBusyException(message));
+        }
+    }
+
+    /**
+     * Check whether the current backend call has been running for longer than the timeout.
+     * @return the exception to fail a new call with, null if the worker is not stuck
+     */
+    private KeyringBusyException checkStuck(String operation) {
+        long since = busySince;
+        long running = System.nanoTime() - since;
+        if (since == 0 || running <= TimeUnit.MILLISECONDS.toNanos(timeout)) {
+            return null;
+        }
+        if (!stuckReported) {
+            stuckReported = true;
+            Logging.warn(NPM + "keyring call running for " + TimeUnit.NANOSECONDS.toMillis(running)
+                    + " ms, failing further calls until it returns");
+        }
+        return new KeyringBusyException("Keyring is not responding, cannot " + operation);
+    }
+
+    /**
+     * Start a call and wait for it at most the timeout.
+     * <p>
+     * This is where the caller blocks, so it is checked by the {@link EdtBlockingDetector} here,
+     * not on the worker thread.
+     * @throws KeyringBusyException if the call did not finish in time, or was refused
+     */
+    private <T> T await(String operation, Supplier<? extends Future<T>> call) {
+        long start = System.nanoTime();
+        try {
+            return call.get().get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KeyringBusyException("Interrupted while waiting for keyring " + operation);
+        } catch (TimeoutException e) {
+            String message = "Keyring " + operation + " did not finish within " + timeout + " ms";
+            Logging.warn(NPM + message);
+            throw new KeyringBusyException(message);
+        } catch (ExecutionException e) {
+            // refused calls were already logged where they were refused
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            EdtBlockingDetector.check("keyring " + operation, start);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Call counts, latency histograms, hit/miss ratios, failures and estimated user prompts
+ * of the keyring operations of one backend.
+ * <p>
+ * Recording only touches lock-free counters, so it is cheap enough to stay enabled.
+ * The numbers are available through {@link #snapshot} and as JMX MXBean
+ * {@code org.openstreetmap.josm.plugins.npm:type=KeyringMetrics,backend=<name>}.
+ */
+public class KeyringMetrics implements KeyringMetricsMXBean {
+
+    /** Keyring operations, see {@link org.netbeans.spi.keyring.KeyringProvider} */
+    public enum Operation {
+        ENABLED, READ, READ_ALL, SAVE, SAVE_ALL, DELETE, DELETE_ALL;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    /**
+     * Calls taking longer than this (in ms) most likely waited for the user,
+     * e.g. to unlock the wallet or to allow access to a keychain item
+     */
+    private static final long PROMPT_THRESHOLD = 1_000;
+
+    private static final Map<String, KeyringMetrics> INSTANCES = new ConcurrentHashMap<>();
+
+    private final String backend;
+    private final Map<Operation, Recorder> recorders = new EnumMap<>(Operation.class);
+
+    /**
+     * Create new metrics, usually {@link #forBackend} should be used instead
+     * @param backend the backend name
+     */
+    public KeyringMetrics(String backend) {
+        this.backend = backend;
+        for (Operation op : Operation.values()) {
+            recorders.put(op, new Recorder());
+        }
+    }
+
+    /**
+     * Get the metrics of a backend, creating and registering them with JMX on first use.
+     * @param backend the backend name
+     * @return the metrics
+     */
+    public static KeyringMetrics forBackend(String backend) {
+        return INSTANCES.computeIfAbsent(backend, b -> {
+            KeyringMetrics metrics = new KeyringMetrics(b);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                        new ObjectName("org.openstreetmap.josm.plugins.npm:type=KeyringMetrics,backend=" + ObjectName.quote(b)));
+            } catch (JMException | SecurityException e) {
+                Logging.warn("Native Password Manager Plugin: keyring metrics not available via JMX: " + e);
+            }
+            return metrics;
+        });
+    }
+
+    /**
+     * Get the metrics of all backends used so far.
+     * @return the metrics
+     */
+    public static Collection<KeyringMetrics> all() {
+        return Collections.unmodifiableCollection(INSTANCES.values());
+    }
+
+    /**
+     * Record one call.
+     * @param operation the operation
+     * @param nanos the duration in nanoseconds
+     * @param hits number of keys found (reads only)
+     * @param misses number of keys not found (reads only)
+     * @param failed true if the call threw an exception
+     */
+    public void record(Operation operation, long nanos, int hits, int misses, boolean failed) {
+        recorders.get(operation).record(nanos, hits, misses, failed);
+    }
+
+    @Override
+    public String getBackend() {
+        return backend;
+    }
+
+    @Override
+    public List<OperationStats> getOperations() {
+        return snapshot();
+    }
+
+    /**
+     * Get the current statistics of all operations which have been called at least once.
+     * @return the statistics
+     */
+    public List<OperationStats> snapshot() {
+        List<OperationStats> result = new ArrayList<>();
+        for (Map.Entry<Operation, Recorder> e : recorders.entrySet()) {
+            OperationStats stats = e.getValue().snapshot(e.getKey());
+            if (stats.getCount() > 0) {
+                result.add(stats);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        recorders.values().forEach(Recorder::reset);
+    }
+
+    /**
+     * Log-linear latency histogram: every power of two is split into 4 buckets,
+     * so percentiles are accurate to 25%.
+     */
+    private static final class Recorder {
+        private static final int BUCKETS = 64 * 4;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder prompts = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos, int hit, int miss, boolean failed) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            histogram.incrementAndGet(bucket(nanos));
+            if (failed) {
+                failures.increment();
+            }
+            if (hit > 0) {
+                hits.add(hit);
+            }
+            if (miss > 0) {
+                misses.add(miss);
+            }
+            if (nanos > PROMPT_THRESHOLD * 1_000_000) {
+                prompts.increment();
+            }
+        }
+
+        static int bucket(long nanos) {
+            if (nanos < 4) {
+                return (int) Math.max(nanos, 0);
+            }
+            int msb = 63 - Long.numberOfLeadingZeros(nanos);
+            return msb * 4 + (int) ((nanos >>> (msb - 2)) & 3);
+        }
+
+        /** the middle of the range of values counted in a bucket */
+        static long bucketValue(int bucket) {
+            if (bucket < 4) {
+                return bucket;
+            }
+            int msb = bucket / 4;
+            long lower = (4L + (bucket & 3)) << (msb - 2);
+            return lower + (1L << (msb - 2)) / 2;
+        }
+
+        OperationStats snapshot(Operation operation) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = histogram.get(i);
+                total += counts[i];
+            }
+            long max = maxNanos.get();
+            // the bucket estimate must not exceed what was actually seen
+            return new OperationStats(operation.toString(), count.sum(), failures.sum(), hits.sum(), misses.sum(),
+                    prompts.sum(), totalNanos.sum(), max, Math.min(percentile(counts, total, 0.50), max),
+                    Math.min(percentile(counts, total, 0.95), max), Math.min(percentile(counts, total, 0.99), max));
+        }
+
+        private static long percentile(long[] counts, long total, double p) {
+            long rank = (long) Math.ceil(total * p);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return bucketValue(i);
+                }
+            }
+            return 0;
+        }
+
+        void reset() {
+            count.reset();
+            failures.reset();
+            hits.reset();
+            misses.reset();
+            prompts.reset();
+            totalNanos.reset();
+            maxNanos.reset();
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * Statistics of one operation at one point in time. Durations are in nanoseconds.
+     */
+    public static final class OperationStats {
+        private final String operation;
+        private final long count;
+        private final long failures;
+        private final long hits;
+        private final long misses;
+        private final long prompts;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long p50Nanos;
+        private final long p95Nanos;
+        private final long p99Nanos;
+
+        OperationStats(String operation, long count, long failures, long hits, long misses, long prompts,
+                long totalNanos, long maxNanos, long p50Nanos, long p95Nanos, long p99Nanos) {
+            this.operation = operation;
+            this.count = count;
+            this.failures = failures;
+            this.hits = hits;
+            this.misses = misses;
+            this.prompts = prompts;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.p50Nanos = p50Nanos;
+            this.p95Nanos = p95Nanos;
+            this.p99Nanos = p99Nanos;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * Get the number of calls which took so long that they probably waited for a user prompt.
+         * @return the estimated number of prompts
+         */
+        public long getPrompts() {
+            return prompts;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getP50Nanos() {
+            return p50Nanos;
+        }
+
+        public long getP95Nanos() {
+            return p95Nanos;
+        }
+
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH,
+                    "%s: %d calls, %d failures, %d hits, %d misses, %d prompts, mean %.3f ms, p50 %.3f ms, p95 %.3f ms,"
+                    + " p99 %.3f ms, max %.3f ms",
+                    operation, count, failures, hits, misses, prompts, getMeanNanos() / 1e6, p50Nanos / 1e6,
+                    p95Nanos / 1e6, p99Nanos / 1e6, maxNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.util.List;
+
+/**
+ * JMX view of the {@link KeyringMetrics} of one backend.
+ */
+public interface KeyringMetricsMXBean {
+
+    /**
+     * Get the backend name.
+     * @return the backend, as in the {@code plugins.native-password-manager.agent} preference
+     */
+    String getBackend();
+
+    /**
+     * Get the statistics of all operations which have been called at least once.
+     * @return the statistics
+     */
+    List<KeyringMetrics.OperationStats> getOperations();
+
+    /**
+     * Reset all counters.
+     */
+    void reset();
+}
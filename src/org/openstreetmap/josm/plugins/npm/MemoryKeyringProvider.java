@@ -0,0 +1,67 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.netbeans.spi.keyring.KeyringProvider;
+
+/**
+ * Reference implementation of {@link KeyringProvider} which keeps the entries in memory.
+ * <p>
+ * It defines the semantics the native providers are measured against:
+ * <ul>
+ * <li>reading a missing key returns {@code null}, an empty value reads back as empty array</li>
+ * <li>saving an existing key overwrites it, deleting a missing key does nothing</li>
+ * <li>values are copied in both directions, so callers may null out their arrays</li>
+ * <li>the batch operations behave exactly like the single ones, key by key</li>
+ * </ul>
+ * It is thread-safe, even though the contract does not require it.
+ */
+public class MemoryKeyringProvider implements KeyringProvider {
+
+    private final Map<String, char[]> entries = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean enabled() {
+        return true;
+    }
+
+    @Override
+    public char[] read(String key) {
+        char[] value = entries.get(key);
+        return value == null ? null : value.clone();
+    }
+
+    @Override
+    public Map<String, char[]> readAll(Collection<String> keys) {
+        Map<String, char[]> result = new LinkedHashMap<>();
+        for (String key : keys) {
+            char[] value = read(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void save(String key, char[] password, String description) {
+        entries.put(key, password.clone());
+    }
+
+    @Override
+    public void delete(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Get the number of stored entries.
+     * @return the number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+}
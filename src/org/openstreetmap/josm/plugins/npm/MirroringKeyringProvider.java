@@ -0,0 +1,215 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.netbeans.spi.keyring.AsyncKeyringProvider;
+import org.netbeans.spi.keyring.KeyringProvider;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Keeps a copy of all credentials in a secondary keyring, and reads from it while the primary one is unusable.
+ * <p>
+ * Every write goes to the primary keyring and, once it succeeded there, to the secondary one,
+ * without waiting for the latter. A read waits for the primary keyring at most the latency budget;
+ * if it fails or does not answer in time, the secondary keyring is read instead. Keys the primary
+ * keyring does not have are not looked up in the secondary one. After {@value #FAILURE_THRESHOLD}
+ * failures in a row the primary keyring is skipped for reads for {@value #OPEN_MILLIS} ms, then tried again.
+ * <p>
+ * Keyrings cannot be enumerated, so the entries stored before the mirror was set up are copied lazily:
+ * the first time in a session a key is read from the primary keyring, its value is also written to the
+ * secondary one, unless it was written or deleted in this session already.
+ * <p>
+ * Failures of the secondary keyring are only logged. Both keyrings should be {@link KeyringExecutor}s,
+ * so that a hanging one cannot block the other.
+ */
+public class MirroringKeyringProvider implements KeyringProvider {
+
+    private static final String NPM = "Native Password Manager Plugin: ";
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long OPEN_MILLIS = 30_000;
+
+    private final AsyncKeyringProvider primary;
+    private final AsyncKeyringProvider secondary;
+    private final long budget;
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile long skipPrimaryUntil;
+    /** the secondary keyring answered that it is available, it is not asked again then */
+    private volatile boolean secondaryEnabled;
+    /** when to ask the secondary keyring again after it was unavailable, or did not answer in time */
+    private volatile long checkSecondaryAt;
+    /** keys whose value in the secondary keyring is up to date, or being written */
+    private final Set<String> synced = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Create a new {@link MirroringKeyringProvider}
+     * @param primary the keyring which holds the credentials
+     * @param secondary the keyring which holds the copy, initialized by this class
+     * @param budget the maximum time in milliseconds to wait for a read of the primary keyring
+     */
+    public MirroringKeyringProvider(AsyncKeyringProvider primary, AsyncKeyringProvider secondary, long budget) {
+        this.primary = primary;
+        this.secondary = secondary;
+        this.budget = budget;
+    }
+
+    private boolean isSecondaryEnabled() {
+        if (secondaryEnabled) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now < checkSecondaryAt) {
+            return false;
+        }
+        // a busy keyring is reported as not available too, so only a positive answer is final
+        if (secondary.enabled()) {
+            secondaryEnabled = true;
+            return true;
+        }
+        checkSecondaryAt = now + OPEN_MILLIS;
+        Logging.warn(NPM + "The keyring to mirror the credentials to is not available, asking again in " + OPEN_MILLIS + " ms");
+        return false;
+    }
+
+    @Override
+    public boolean enabled() {
+        return primary.enabled();
+    }
+
+    @Override
+    public char[] read(String key) {
+        return readAll(Collections.singletonList(key)).get(key);
+    }
+
+    @Override
+    public Map<String, char[]> readAll(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return new LinkedHashMap<>();
+        }
+        if (!isSecondaryEnabled()) {
+            // nothing to fall back to, so wait for the primary keyring and let it report its failures
+            return primary.readAll(keys);
+        }
+        if (System.currentTimeMillis() >= skipPrimaryUntil) {
+            Map<String, char[]> values = readPrimary(keys);
+            if (values != null) {
+                syncMirror(values);
+                return values;
+            }
+        }
+        return secondary.readAll(keys);
+    }
+
+    /**
+     * Copy the values read from the primary keyring to the secondary one, if it has not been done in this session.
+     */
+    private void syncMirror(Map<String, char[]> values) {
+        Map<String, char[]> missing = new LinkedHashMap<>();
+        values.forEach((k, v) -> {
+            if (v != null && synced.add(k)) {
+                missing.put(k, v);
+            }
+        });
+        if (!missing.isEmpty()) {
+            mirror("copy", secondary.saveAllAsync(copy(missing), Collections.emptyMap()));
+        }
+    }
+
+    /**
+     * Read from the primary keyring within the budget.
+     * @return the values, or null if the read failed or took too long
+     */
+    private Map<String, char[]> readPrimary(Collection<String> keys) {
+        CompletableFuture<Map<String, char[]>> future = primary.readAllAsync(keys);
+        try {
+            Map<String, char[]> values = future.get(budget, TimeUnit.MILLISECONDS);
+            failures.set(0);
+            return values;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (TimeoutException e) {
+            primaryFailed("did not answer within " + budget + " ms");
+        } catch (ExecutionException e) {
+            primaryFailed("failed: " + e.getCause());
+        }
+        return null;
+    }
+
+    private void primaryFailed(String reason) {
+        if (failures.incrementAndGet() >= FAILURE_THRESHOLD) {
+            failures.set(0);
+            skipPrimaryUntil = System.currentTimeMillis() + OPEN_MILLIS;
+            Logging.warn(NPM + "The keyring " + reason + ", reading from the mirror for the next " + OPEN_MILLIS + " ms");
+        } else {
+            Logging.info(NPM + "The keyring " + reason + ", reading from the mirror");
+        }
+    }
+
+    /**
+     * Run a write on the secondary keyring without waiting for it.
+     */
+    private void mirror(String operation, CompletableFuture<Void> write) {
+        write.whenComplete((v, e) -> {
+            if (e != null) {
+                Logging.warn(NPM + "Could not " + operation + " the mirrored credentials: " + e);
+            }
+        });
+    }
+
+    private static Map<String, char[]> copy(Map<String, char[]> passwords) {
+        // the caller may null out the arrays before the mirror has written them
+        Map<String, char[]> copy = new LinkedHashMap<>();
+        passwords.forEach((k, v) -> copy.put(k, v.clone()));
+        return copy;
+    }
+
+    // the primary writes of the GNOME and KDE keyrings throw if they fail, so the mirror only gets what
+    // those have; other keyrings may only log a failed write, and the mirror then has a value they lack
+
+    @Override
+    public void save(String key, char[] password, String description) {
+        primary.save(key, password, description);
+        if (isSecondaryEnabled()) {
+            synced.add(key);
+            mirror("save", secondary.saveAsync(key, password.clone(), description));
+        }
+    }
+
+    @Override
+    public void saveAll(Map<String, char[]> passwords, Map<String, String> descriptions) {
+        primary.saveAll(passwords, descriptions);
+        if (isSecondaryEnabled()) {
+            synced.addAll(passwords.keySet());
+            mirror("save", secondary.saveAllAsync(copy(passwords), descriptions));
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        primary.delete(key);
+        if (isSecondaryEnabled()) {
+            synced.add(key);
+            mirror("delete", secondary.deleteAsync(key));
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<String> keys) {
+        primary.deleteAll(keys);
+        if (isSecondaryEnabled()) {
+            synced.addAll(keys);
+            mirror("delete", secondary.deleteAllAsync(keys));
+        }
+    }
+}
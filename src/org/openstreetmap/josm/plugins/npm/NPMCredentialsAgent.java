@@ -3,21 +3,37 @@ package org.openstreetmap.josm.plugins.npm;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
+import java.awt.BorderLayout;
 import java.awt.Component;
+import java.awt.FlowLayout;
+import java.awt.GraphicsEnvironment;
+import java.io.File;
 import java.net.Authenticator.RequestorType;
 import java.net.PasswordAuthentication;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.EnumMap;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 import java.util.zip.CRC32;
 
+import javax.swing.JButton;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
 import javax.swing.text.html.HTMLEditorKit;
 
+import org.netbeans.spi.keyring.AsyncKeyringProvider;
 import org.netbeans.spi.keyring.KeyringProvider;
 import org.openstreetmap.josm.data.Preferences;
 import org.openstreetmap.josm.data.oauth.IOAuthToken;
@@ -25,20 +41,31 @@ import org.openstreetmap.josm.data.oauth.OAuth20Exception;
 import org.openstreetmap.josm.data.oauth.OAuth20Parameters;
 import org.openstreetmap.josm.data.oauth.OAuth20Token;
 import org.openstreetmap.josm.data.oauth.OAuthVersion;
+import org.openstreetmap.josm.gui.Notification;
+import org.openstreetmap.josm.gui.util.GuiHelper;
 import org.openstreetmap.josm.gui.widgets.HtmlPanel;
 import org.openstreetmap.josm.io.DefaultProxySelector;
 import org.openstreetmap.josm.io.OsmApi;
 import org.openstreetmap.josm.io.auth.AbstractCredentialsAgent;
 import org.openstreetmap.josm.io.auth.CredentialsAgentException;
 import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
 
 /**
  * The native password manager credentials agent
  */
-public class NPMCredentialsAgent extends AbstractCredentialsAgent {
+public class NPMCredentialsAgent extends AbstractCredentialsAgent implements AutoCloseable {
 
-    private KeyringProvider provider;
+    private static final String NPM = "Native Password Manager Plugin: ";
+    private static final long SHUTDOWN_FLUSH_TIMEOUT = 10_000;
+
+    private WriteBehindKeyringProvider provider;
+    /** the layers below {@link #provider}, whose failures are thrown to the caller instead of reported */
+    private KeyringProvider directKeyring;
+    private volatile KeyringChangeNotifier notifier;
+    private Thread shutdownHook;
     private final NPMType type;
+    private final KeyringProvider backend;
     
     /**
      * Cache the results since there might be pop-ups and password prompts from
@@ -48,8 +75,39 @@ public class NPMCredentialsAgent extends AbstractCredentialsAgent {
      * to avoid prompting the user for login multiple times in one session,
      * when they decide not to save the credentials.
      * In contrast, this cache avoids read request the backend in general.
+     * The key is the {@link RequestorType} and the host, see {@link #getCacheKey}.
+     * The logins are kept encrypted and are dropped when not used for a while.
+     */
+    private final SealedCredentialCache credentialsCache = new SealedCredentialCache(
+            Config.getPref().getLong(NPMPlugin.NPMPLUGIN_KEY + "cache-idle-timeout", 15 * 60_000));
+
+    /**
+     * Keys of the entries which are known to be stored as one {@link CredentialRecord} and have no
+     * legacy split entries (e.g. {@code .username} and {@code .password}) left in the keyring.
      */
-    private final Map<RequestorType, PasswordAuthentication> credentialsCache = new EnumMap<>(RequestorType.class);
+    private final Set<String> migrated = ConcurrentHashMap.newKeySet();
+    /** the moves of legacy entries to records which are not done yet, see {@link #saveRecord} */
+    private final Set<CompletableFuture<Void>> migrations = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Parsed OAuth tokens by host, and the hosts known to have no token,
+     * so that neither the keyring nor the token parser is asked twice.
+     */
+    private final Map<String, IOAuthToken> oauthCache = new ConcurrentHashMap<>();
+    private final Set<String> oauthMisses = ConcurrentHashMap.newKeySet();
+    private final OAuthHostIndex oauthIndex;
+
+    /**
+     * The servers other than the OSM API with a stored login, and the servers which are not
+     * in the index but were looked up in the keyring anyway in this session, in case their
+     * login was stored by an older plugin version.
+     */
+    private final HostCredentialIndex hostIndex;
+    private final Set<String> probedHosts = ConcurrentHashMap.newKeySet();
+
+    /** lookups of logins and OAuth tokens, and the ones answered without asking the keyring */
+    private final LongAdder cacheLookups = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
 
 
     /**
@@ -57,15 +115,143 @@ public class NPMCredentialsAgent extends AbstractCredentialsAgent {
      * @param type The backend storage type
      */
     public NPMCredentialsAgent(NPMType type) {
+        this(type, null);
+    }
+
+    /**
+     * Create a new {@link NPMCredentialsAgent} using a specific backend instance, e.g. for benchmarks
+     * @param type The backend storage type
+     * @param backend The backend, {@code null} to use the one of {@code type}
+     */
+    NPMCredentialsAgent(NPMType type, KeyringProvider backend) {
+        this(type, backend, true);
+    }
+
+    /**
+     * Create a new {@link NPMCredentialsAgent} whose host indexes may be kept to itself
+     * @param type The backend storage type
+     * @param backend The backend, {@code null} to use the one of {@code type}
+     * @param persistIndexes whether changes of the host indexes are saved to the preferences, false for
+     * an agent next to another one of the same preferences, like the source of a migration
+     */
+    NPMCredentialsAgent(NPMType type, KeyringProvider backend, boolean persistIndexes) {
         this.type = type;
+        this.backend = backend;
+        this.oauthIndex = new OAuthHostIndex(persistIndexes);
+        this.hostIndex = new HostCredentialIndex(persistIndexes);
     }
     
-    private KeyringProvider getProvider() {
+    private synchronized WriteBehindKeyringProvider getProvider() {
         if (provider == null) {
-            provider = type.getProvider();
+            // the keyrings of the types are shared with other agents, so that each backend is only called from one thread
+            AsyncKeyringProvider primary = backend != null
+                    ? NPMType.createKeyring(backend, NPMType.createExecutor(type, backend)) : type.getKeyring();
+            KeyringProvider keyring = primary;
+            NPMType mirrorType = NPMType.fromPrefString(Config.getPref().get(NPMPlugin.NPMPLUGIN_KEY + "mirror", null));
+            // the plain text preferences are no place for a copy of the credentials
+            if (backend == null && mirrorType != null && mirrorType != type && mirrorType.getProvider() != null) {
+                keyring = new MirroringKeyringProvider(primary, mirrorType.getKeyring(),
+                        Config.getPref().getLong(NPMPlugin.NPMPLUGIN_KEY + "mirror-budget", 2_000));
+            }
+            directKeyring = keyring;
+            WriteBehindKeyringProvider writeBehind = new WriteBehindKeyringProvider(keyring, this::reportWriteFailure);
+            // credentials stored right before exit must not get lost
+            shutdownHook = new Thread(() -> writeBehind.flush(SHUTDOWN_FLUSH_TIMEOUT), "npm-keyring-flush");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+            provider = writeBehind;
+            // a backend instance of its own is not shared with other JOSM instances
+            if (backend == null && Config.getPref().getBoolean(NPMPlugin.NPMPLUGIN_KEY + "notify-instances", true)) {
+                KeyringChangeNotifier changes = new KeyringChangeNotifier(
+                        new File(Config.getDirs().getPreferencesDirectory(true), "npm-keyring-generation").toPath(),
+                        this::invalidateCaches);
+                changes.start();
+                notifier = changes;
+            }
         }
         return provider;
     }
+
+    /**
+     * Write the credentials stored so far, and stop the threads of this agent and its shutdown hook.
+     * The agent starts them again if it is used afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        if (provider == null) {
+            return;
+        }
+        // the deletes of migrated legacy entries are only queued once their record has been read back
+        try {
+            CompletableFuture.allOf(migrations.toArray(new CompletableFuture<?>[0]))
+                    .get(SHUTDOWN_FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // logged where they failed, or left to the next session
+            Logging.trace(e);
+        }
+        if (!provider.close(SHUTDOWN_FLUSH_TIMEOUT)) {
+            Logging.warn(NPM + "Not all credentials were written to " + type.getName() + " within "
+                    + SHUTDOWN_FLUSH_TIMEOUT + " ms");
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // JOSM is exiting, the hook flushes the rest
+            Logging.trace(e);
+        }
+        KeyringChangeNotifier changes = notifier;
+        if (changes != null) {
+            changes.stop();
+            notifier = null;
+        }
+        provider = null;
+        directKeyring = null;
+        shutdownHook = null;
+    }
+
+    /**
+     * Forget everything read from the keyring, since another JOSM instance changed it,
+     * or a write to it failed.
+     */
+    private void invalidateCaches() {
+        credentialsCache.clear();
+        oauthCache.clear();
+        oauthMisses.clear();
+        probedHosts.clear();
+    }
+
+    /**
+     * Tell the other JOSM instances about a change once it has been written to the keyring.
+     */
+    private void publishWhenWritten(CompletableFuture<Void> write) {
+        KeyringChangeNotifier changes = notifier;
+        if (changes != null) {
+            write.thenRun(changes::publish);
+        }
+    }
+
+    /**
+     * Wait until all credentials stored so far have been written to the backend.
+     * @param timeout the maximum time to wait in milliseconds
+     * @return true if everything was written, false on timeout or interrupt
+     */
+    boolean flush(long timeout) {
+        return getProvider().flush(timeout);
+    }
+
+    private void reportWriteFailure(RuntimeException e) {
+        // the caches may hold credentials which never made it to the keyring
+        invalidateCaches();
+        if (!GraphicsEnvironment.isHeadless()) {
+            GuiHelper.runInEDT(() -> new Notification(
+                    tr("Native Password Manager Plugin: the credentials could not be saved to {0}.", type.getName())
+                    + "<br>" + e.getMessage())
+                    .setIcon(JOptionPane.WARNING_MESSAGE)
+                    .setDuration(Notification.TIME_LONG)
+                    .show());
+        }
+    }
     
     protected String getServerDescriptor() {
         String pref = Preferences.main().getPreferenceFile().getAbsolutePath();
@@ -109,37 +295,153 @@ public class NPMCredentialsAgent extends AbstractCredentialsAgent {
     }
     
     @Override
-    public PasswordAuthentication lookup(RequestorType rt, String host) {
-        PasswordAuthentication cache = credentialsCache.get(rt);
-        if (cache != null) 
-            return cache;
-        String user;
-        char[] password;
-        PasswordAuthentication auth;
+    public void purgeCredentialsCache(RequestorType requestorType) {
+        super.purgeCredentialsCache(requestorType);
+        // the credentials were rejected, so the keyring may have newer ones
+        String prefix = getCacheKey(requestorType, "");
+        credentialsCache.removeByPrefix(prefix);
+    }
+
+    private static String getCacheKey(RequestorType rt, String host) {
+        return rt.name() + ' ' + host;
+    }
+
+    private String getLoginPrefix(RequestorType rt, String host) {
         switch(rt) {
             case SERVER:
-                if(OsmApi.getOsmApi().getHost().equals(host)) {
-                    user = stringNotNull(getProvider().read(getServerDescriptor()+".username"));
-                    password = getProvider().read(getServerDescriptor()+".password");
-                } else {
-                    user = stringNotNull(getProvider().read(host+".username"));
-                    password = getProvider().read(host+".password");
-                }
-                auth = new PasswordAuthentication(user, password == null ? new char[0] : password);
-                break;
+                return OsmApi.getOsmApi().getHost().equals(host) ? getServerDescriptor() : host;
+            case PROXY:
+                return getProxyDescriptor();
+            default: throw new IllegalStateException();
+        }
+    }
+
+    private static boolean isIndexedHost(RequestorType rt, String host) {
+        return rt == RequestorType.SERVER && host != null && !OsmApi.getOsmApi().getHost().equals(host);
+    }
+
+    /**
+     * Get the family login a host shares with the other hosts of its domain, as registered by the user.
+     * @param host the host
+     * @return the most specific pattern like {@code *.example.com} from the preference {@code host-families}
+     * which applies to the host, null if there is none
+     */
+    private static String getFamily(String host) {
+        String family = null;
+        for (String pattern : Config.getPref().getList(NPMPlugin.NPMPLUGIN_KEY + "host-families", Collections.emptyList())) {
+            if (HostCredentialIndex.matches(pattern, host) && (family == null || pattern.length() > family.length())) {
+                family = pattern.toLowerCase(Locale.ROOT);
+            }
+        }
+        return family;
+    }
+
+    private static String getLoginDescription(RequestorType rt, String host) {
+        switch(rt) {
+            case SERVER:
+                return OsmApi.getOsmApi().getHost().equals(host) ? tr("JOSM/OSM API/Login") : tr("{0}/Login", host);
             case PROXY:
-                user = stringNotNull(getProvider().read(getProxyDescriptor()+".username"));
-                password = getProvider().read(getProxyDescriptor()+".password");
-                auth = new PasswordAuthentication(user, password == null ? new char[0] : password);
-                break;
+                return tr("JOSM/Proxy/Login");
             default: throw new IllegalStateException();
         }
-        credentialsCache.put(rt, auth);
-        return auth;
+    }
+
+    @Override
+    public PasswordAuthentication lookup(RequestorType rt, String host) throws CredentialsAgentException {
+        long start = System.nanoTime();
+        CredentialsEvent event = new CredentialsEvent();
+        event.begin();
+        PasswordAuthentication auth = null;
+        try {
+            auth = lookup(rt, host, event);
+            return auth;
+        } finally {
+            commit(event, "lookup", rt, host, auth != null && !auth.getUserName().isEmpty());
+            countLookup(event);
+            EdtBlockingDetector.check("lookup", start);
+        }
+    }
+
+    private PasswordAuthentication lookup(RequestorType rt, String host, CredentialsEvent event)
+            throws CredentialsAgentException {
+        PasswordAuthentication cache = credentialsCache.get(getCacheKey(rt, host));
+        if (cache != null) {
+            event.cacheHit = true;
+            return cache;
+        }
+        String keyHost = host;
+        boolean probe = false;
+        if (isIndexedHost(rt, host)) {
+            String entry = hostIndex.match(host);
+            if (entry != null && HostCredentialIndex.isPattern(entry)) {
+                keyHost = entry;
+            } else if (entry == null) {
+                // the family login may have been stored before the index was
+                String family = getFamily(host);
+                if (family != null) {
+                    keyHost = family;
+                }
+                if (probedHosts.contains(host)) {
+                    // neither in the index nor found in the keyring earlier in this session
+                    event.cacheHit = true;
+                    return new PasswordAuthentication("", new char[0]);
+                }
+                probe = true;
+            }
+        }
+        String prefix = getLoginPrefix(rt, keyHost);
+        // the legacy split entries are fetched in the same round trip, in case they still need migration
+        Map<String, char[]> values = readAll(
+                Arrays.asList(prefix+".credentials", prefix+".username", prefix+".password"));
+        if (probe) {
+            // only now the keyring has answered for this host, a failed read throws above
+            probedHosts.add(host);
+        }
+        char[][] fields = CredentialRecord.decode(values.get(prefix+".credentials"), 2);
+        try {
+            char[] username, password;
+            if (fields != null) {
+                username = fields[0];
+                password = fields[1];
+            } else {
+                username = values.get(prefix+".username");
+                password = values.get(prefix+".password");
+                if (username != null && username.length > 0) {
+                    saveRecord(prefix+".credentials", CredentialRecord.encode(username, password),
+                            getLoginDescription(rt, keyHost), Arrays.asList(prefix+".username", prefix+".password"));
+                }
+            }
+            if (values.get(prefix+".username") == null && values.get(prefix+".password") == null) {
+                migrated.add(prefix+".credentials");
+            }
+            if (isIndexedHost(rt, host) && username != null && username.length > 0) {
+                hostIndex.put(keyHost);
+            }
+            // PasswordAuthentication and the cache copy the password
+            PasswordAuthentication auth = new PasswordAuthentication(stringNotNull(username),
+                    password == null ? new char[0] : password);
+            credentialsCache.put(getCacheKey(rt, host), auth.getUserName(), password);
+            return auth;
+        } finally {
+            wipe(fields);
+            wipe(values);
+        }
     }
 
     @Override
     public void store(RequestorType rt, String host, PasswordAuthentication credentials) {
+        long start = System.nanoTime();
+        CredentialsEvent event = new CredentialsEvent();
+        event.begin();
+        try {
+            doStore(rt, host, credentials);
+        } finally {
+            commit(event, "store", rt, host, credentials != null);
+            EdtBlockingDetector.check("store", start);
+        }
+    }
+
+    private void doStore(RequestorType rt, String host, PasswordAuthentication credentials) {
         char[] username, password;
         if (credentials == null) {
             username = null;
@@ -152,59 +454,194 @@ public class NPMCredentialsAgent extends AbstractCredentialsAgent {
             username = null;
         }
         // password could be empty string in theory, so don't set to null if empty
-        String prefix, usernameDescription, passwordDescription;
-        switch(rt) {
-            case SERVER:
-                if(OsmApi.getOsmApi().getHost().equals(host)) {
-                    prefix = getServerDescriptor();
-                    usernameDescription = tr("JOSM/OSM API/Username");
-                    passwordDescription = tr("JOSM/OSM API/Password");
-                } else {
-                    prefix = host;
-                    usernameDescription = tr("{0}/Username", host);
-                    passwordDescription = tr("{0}/Password", host);
-                }
-                break;
-            case PROXY:
-                prefix = getProxyDescriptor();
-                usernameDescription = tr("JOSM/Proxy/Username");
-                passwordDescription = tr("JOSM/Proxy/Password");
-                break;
-            default: throw new IllegalStateException();
-        }
+        // a login for a host with a family login is stored for that host only, it wins over the family login,
+        // unless the user registered the family as sharing one login
+        String family = isIndexedHost(rt, host) ? getFamily(host) : null;
+        String keyHost = family != null ? family : host;
+        String prefix = getLoginPrefix(rt, keyHost);
         if (username == null) {
-            getProvider().delete(prefix+".username");
-            getProvider().delete(prefix+".password");
-            credentialsCache.remove(rt);
+            deleteLogin(prefix);
+            if (isIndexedHost(rt, host)) {
+                hostIndex.remove(keyHost);
+            }
         } else {
-            getProvider().save(prefix+".username", username, usernameDescription);
-            if (password == null) {
-                getProvider().delete(prefix+".password");
-            } else {
-                getProvider().save(prefix+".password", password, passwordDescription);
+            saveRecord(prefix+".credentials", CredentialRecord.encode(username, password),
+                    getLoginDescription(rt, keyHost), Arrays.asList(prefix+".username", prefix+".password"));
+            if (family != null && host.toLowerCase(Locale.ROOT).equals(hostIndex.match(host))) {
+                // the login of the host alone would win over the family login
+                deleteLogin(getLoginPrefix(rt, host));
+                hostIndex.remove(host);
+            }
+            if (isIndexedHost(rt, host)) {
+                hostIndex.put(keyHost);
             }
-            credentialsCache.put(rt, new PasswordAuthentication(stringNotNull(username), password != null ? password : new char[0]));
         }
+        if (family != null) {
+            // the other hosts of the family share the login
+            credentialsCache.removeByPrefix(getCacheKey(rt, ""));
+        }
+        if (username == null) {
+            credentialsCache.remove(getCacheKey(rt, host));
+        } else {
+            credentialsCache.put(getCacheKey(rt, host), stringNotNull(username), password);
+            // our copy; the password belongs to the caller
+            Arrays.fill(username, '\0');
+        }
+    }
+
+    private void deleteLogin(String prefix) {
+        CompletableFuture<Void> delete = getProvider().deleteAllAsync(
+                Arrays.asList(prefix+".credentials", prefix+".username", prefix+".password"));
+        publishWhenWritten(delete);
+        delete.thenRun(() -> migrated.add(prefix+".credentials"));
+    }
+
+    /**
+     * Save a record, and remove the legacy split entries it replaces once it is safely stored.
+     * <p>
+     * The legacy entries may be the only copy of the credentials, and some backends do not report
+     * every failed write. So they are only deleted after the record has been written and read back
+     * unchanged; until then the record key is not {@link #migrated}, and the next store tries again.
+     * @param recordKey the key of the record
+     * @param record the encoded record, wiped once the save is done
+     * @param description the description of the record
+     * @param legacyKeys the legacy entries which the record replaces
+     * @return the future of the save of the record
+     */
+    private CompletableFuture<Void> saveRecord(String recordKey, char[] record, String description, List<String> legacyKeys) {
+        WriteBehindKeyringProvider keyring = getProvider();
+        CompletableFuture<Void> save = keyring.saveAsync(recordKey, record, description);
+        publishWhenWritten(save);
+        save.whenComplete((v, e) -> Arrays.fill(record, '\0'));
+        if (!migrated.contains(recordKey)) {
+            char[] expected = record.clone();
+            // the read back blocks, so it does not run on the thread which completes the save
+            CompletableFuture<Void> migration = save.thenApplyAsync(v -> keyring.readAll(Collections.singletonList(recordKey)))
+                .thenCompose(values -> {
+                    boolean same = Arrays.equals(values.get(recordKey), expected);
+                    wipe(values);
+                    if (!same) {
+                        Logging.warn(NPM + "The record read back differs from the one saved, keeping the legacy entries");
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    return keyring.deleteAllAsync(legacyKeys).thenRun(() -> migrated.add(recordKey));
+                })
+                .whenComplete((v, e) -> {
+                    Arrays.fill(expected, '\0');
+                    if (e != null) {
+                        Logging.warn(NPM + "Could not move the legacy entries to a record, keeping them: " + e);
+                    }
+                });
+            migrations.add(migration);
+            migration.whenComplete((v, e) -> migrations.remove(migration));
+        }
+        return save;
+    }
+
+    private static List<String> getLegacyOAuthKeys(String prolog, String host) {
+        OAuthVersion[] versions = OAuthVersion.values();
+        List<String> keys = new ArrayList<>(2 * versions.length);
+        for (OAuthVersion version : versions) {
+            keys.add(prolog + ".object." + version + "." + host);
+            keys.add(prolog + ".parameters." + version + "." + host);
+        }
+        return keys;
     }
 
     @Override
     public IOAuthToken lookupOAuthAccessToken(String host) throws CredentialsAgentException {
+        long start = System.nanoTime();
+        CredentialsEvent event = new CredentialsEvent();
+        event.begin();
+        IOAuthToken token = null;
+        try {
+            token = lookupOAuthAccessToken(host, event);
+            return token;
+        } finally {
+            commit(event, "lookupOAuthAccessToken", null, host, token != null);
+            countLookup(event);
+            EdtBlockingDetector.check("lookupOAuthAccessToken", start);
+        }
+    }
+
+    private IOAuthToken lookupOAuthAccessToken(String host, CredentialsEvent event) throws CredentialsAgentException {
+        IOAuthToken cached = oauthCache.get(host);
+        if (cached != null || oauthMisses.contains(host)) {
+            event.cacheHit = true;
+            return cached;
+        }
         String prolog = getOAuthDescriptor();
-        OAuthVersion[] versions = OAuthVersion.values();
-        // Prefer newer OAuth protocols
-        for (int i = versions.length - 1; i >= 0; i--) {
-            OAuthVersion version = versions[i];
-            char[] tokenObject = getProvider().read(prolog + ".object." + version + "." + host);
-            char[] parametersObject = getProvider().read(prolog + ".parameters." + version + "." + host);
-            if (version == OAuthVersion.OAuth20 // There is currently only an OAuth 2.0 path
-                    && tokenObject != null && tokenObject.length > 0
-                    && parametersObject != null && parametersObject.length > 0) {
-                OAuth20Parameters oAuth20Parameters = new OAuth20Parameters(stringNotNull(parametersObject));
-                try {
-                    return new OAuth20Token(oAuth20Parameters, stringNotNull(tokenObject));
-                } catch (OAuth20Exception e) {
-                    throw new CredentialsAgentException(e);
+        String recordKey = prolog + ".token." + host;
+        OAuthVersion indexed = oauthIndex.get(host);
+        List<String> keys = new ArrayList<>();
+        keys.add(recordKey);
+        if (indexed == null) {
+            // not known yet, probe for entries written by older plugin versions as well
+            keys.addAll(getLegacyOAuthKeys(prolog, host));
+        }
+        Map<String, char[]> values = readAll(keys);
+        char[][] fields = CredentialRecord.decode(values.get(recordKey), 3);
+        IOAuthToken token = null;
+        try {
+            if (fields != null) {
+                if (indexed == null && keys.stream().skip(1).noneMatch(values::containsKey)) {
+                    migrated.add(recordKey);
+                }
+                token = createOAuthToken(stringNotNull(fields[0]), fields[1], fields[2]);
+            } else if (indexed == null) {
+                OAuthVersion[] versions = OAuthVersion.values();
+                // Prefer newer OAuth protocols
+                for (int i = versions.length - 1; i >= 0 && token == null; i--) {
+                    OAuthVersion version = versions[i];
+                    char[] tokenObject = values.get(prolog + ".object." + version + "." + host);
+                    char[] parametersObject = values.get(prolog + ".parameters." + version + "." + host);
+                    token = createOAuthToken(version.name(), tokenObject, parametersObject);
                 }
+                if (token != null) {
+                    // move the token to the single entry format, the legacy entries are removed once it is verified
+                    doStoreOAuthAccessToken(host, token);
+                    return token;
+                }
+                migrated.add(recordKey);
+            }
+        } finally {
+            // the token keeps strings of its own
+            wipe(fields);
+            wipe(values);
+        }
+        if (token != null) {
+            oauthCache.put(host, token);
+            oauthIndex.put(host, token.getOAuthType());
+        } else {
+            // the keyring answered and has no token; a failed read has thrown above
+            oauthMisses.add(host);
+            oauthIndex.remove(host);
+        }
+        return token;
+    }
+
+    /**
+     * Read from the keyring. A keyring which cannot be read is reported to the caller,
+     * so that nothing is remembered as missing which may well be stored.
+     */
+    private Map<String, char[]> readAll(List<String> keys) throws CredentialsAgentException {
+        try {
+            return getProvider().readAll(keys);
+        } catch (RuntimeException e) {
+            throw new CredentialsAgentException(tr("Cannot read the credentials from {0}", type.getName()), e);
+        }
+    }
+
+    private static IOAuthToken createOAuthToken(String version, char[] tokenObject, char[] parametersObject)
+            throws CredentialsAgentException {
+        if (OAuthVersion.OAuth20.name().equals(version) // There is currently only an OAuth 2.0 path
+                && tokenObject != null && tokenObject.length > 0
+                && parametersObject != null && parametersObject.length > 0) {
+            OAuth20Parameters oAuth20Parameters = new OAuth20Parameters(stringNotNull(parametersObject));
+            try {
+                return new OAuth20Token(oAuth20Parameters, stringNotNull(tokenObject));
+            } catch (OAuth20Exception e) {
+                throw new CredentialsAgentException(e);
             }
         }
         return null;
@@ -212,21 +649,109 @@ public class NPMCredentialsAgent extends AbstractCredentialsAgent {
 
     @Override
     public void storeOAuthAccessToken(String host, IOAuthToken accessToken) {
+        long start = System.nanoTime();
+        CredentialsEvent event = new CredentialsEvent();
+        event.begin();
+        try {
+            doStoreOAuthAccessToken(host, accessToken);
+        } finally {
+            commit(event, "storeOAuthAccessToken", null, host, accessToken != null);
+            EdtBlockingDetector.check("storeOAuthAccessToken", start);
+        }
+    }
+
+    private void doStoreOAuthAccessToken(String host, IOAuthToken accessToken) {
         String prolog = getOAuthDescriptor();
+        String recordKey = prolog + ".token." + host;
         if (accessToken == null) {
             // Assume all oauth tokens must be removed
-            for (OAuthVersion version : OAuthVersion.values()) {
-                getProvider().delete(prolog + ".object." + version + "." + host);
-                getProvider().delete(prolog + ".parameters." + version + "." + host);
-            }
+            List<String> keys = new ArrayList<>();
+            keys.add(recordKey);
+            keys.addAll(getLegacyOAuthKeys(prolog, host));
+            CompletableFuture<Void> delete = getProvider().deleteAllAsync(keys);
+            publishWhenWritten(delete);
+            delete.thenRun(() -> migrated.add(recordKey));
+            oauthCache.remove(host);
+            // until the delete is written, lookups still ask the keyring; if it fails, the token is still there
+            delete.thenRun(() -> {
+                if (!oauthCache.containsKey(host)) {
+                    oauthMisses.add(host);
+                    oauthIndex.remove(host);
+                }
+            });
         } else {
-            OAuthVersion oauthType = accessToken.getOAuthType();
-            getProvider().save(prolog + ".object." + oauthType + "." + host,
-                    accessToken.toPreferencesString().toCharArray(),
-                    tr("JOSM/OAuth/{0}/Token", URI.create(host).getHost()));
-            getProvider().save(prolog + ".parameters." + oauthType + "." + host,
-                    accessToken.getParameters().toPreferencesString().toCharArray(),
-                    tr("JOSM/OAuth/{0}/Parameters", URI.create(host).getHost()));
+            char[][] fields = {
+                accessToken.getOAuthType().name().toCharArray(),
+                accessToken.toPreferencesString().toCharArray(),
+                accessToken.getParameters().toPreferencesString().toCharArray()
+            };
+            CompletableFuture<Void> save = saveRecord(recordKey, CredentialRecord.encode(fields),
+                    tr("JOSM/OAuth/{0}/Token", URI.create(host).getHost()), getLegacyOAuthKeys(prolog, host));
+            wipe(fields);
+            oauthCache.put(host, accessToken);
+            oauthMisses.remove(host);
+            // lookups skip the legacy entries of indexed hosts, so only index a token which is stored
+            save.thenRun(() -> oauthIndex.put(host, accessToken.getOAuthType()));
+        }
+    }
+
+    private static void commit(CredentialsEvent event, String operation, RequestorType rt, String host, boolean found) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.requestorType = rt == null ? "" : rt.name();
+            event.hostHash = host == null ? null : KeyringEvent.hash(Collections.singletonList(host));
+            event.found = found;
+            event.commit();
+        }
+    }
+
+    private void countLookup(CredentialsEvent event) {
+        cacheLookups.increment();
+        if (event.cacheHit) {
+            cacheHits.increment();
+        }
+    }
+
+    /**
+     * Get the number of credentials lookups so far.
+     * @return the number of lookups of logins and OAuth tokens
+     */
+    long getCacheLookups() {
+        return cacheLookups.sum();
+    }
+
+    /**
+     * Get the number of credentials lookups answered from the caches.
+     * @return the number of lookups which did not ask the keyring
+     */
+    long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * Get the keyring as used by this agent, without the write-behind layer: writes block until they are
+     * done and throw if they fail, instead of telling the user that the credentials could not be saved.
+     * @return the keyring, with the executor and all other layers between the write-behind layer and the backend
+     */
+    synchronized KeyringProvider getKeyring() {
+        getProvider();
+        return directKeyring;
+    }
+
+    private static void wipe(Map<String, char[]> values) {
+        for (char[] value : values.values()) {
+            Arrays.fill(value, '\0');
+        }
+    }
+
+    private static void wipe(char[][] fields) {
+        if (fields != null) {
+            for (char[] field : fields) {
+                if (field != null) {
+                    Arrays.fill(field, '\0');
+                }
+            }
         }
     }
 
@@ -277,7 +802,15 @@ public class NPMCredentialsAgent extends AbstractCredentialsAgent {
                     String.join(", ", sensitive)));
         }
         pnlMessage.setText(text.toString());
-        return pnlMessage;
+        JButton btnDiagnostics = new JButton(tr("Diagnostics..."));
+        btnDiagnostics.setToolTipText(tr("Test the password manager and show how fast it answers"));
+        btnDiagnostics.addActionListener(e -> new KeyringDiagnosticsDialog(btnDiagnostics, this, type).showDialog());
+        JPanel pnl = new JPanel(new BorderLayout());
+        pnl.add(pnlMessage, BorderLayout.CENTER);
+        JPanel pnlButton = new JPanel(new FlowLayout(FlowLayout.LEADING, 0, 5));
+        pnlButton.add(btnDiagnostics);
+        pnl.add(pnlButton, BorderLayout.SOUTH);
+        return pnl;
     }
     
     @Override
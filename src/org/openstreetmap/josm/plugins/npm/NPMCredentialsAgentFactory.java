@@ -5,7 +5,7 @@ import org.openstreetmap.josm.io.auth.CredentialsAgent;
 import org.openstreetmap.josm.io.auth.CredentialsManager.CredentialsAgentFactory;
 
 public class NPMCredentialsAgentFactory implements CredentialsAgentFactory {
-    private CredentialsAgent instance;
+    private NPMCredentialsAgent instance;
         
     private NPMType type;
 
@@ -14,11 +14,20 @@ public class NPMCredentialsAgentFactory implements CredentialsAgentFactory {
     }
 
     @Override
-    public CredentialsAgent getCredentialsAgent() {
+    public synchronized CredentialsAgent getCredentialsAgent() {
         if (instance == null) {
             instance = new NPMCredentialsAgent(type);
         }
         return instance;
     }
 
+    /**
+     * Close the agent of this factory, once another factory has replaced it.
+     */
+    public synchronized void close() {
+        if (instance != null) {
+            instance.close();
+        }
+    }
+
 }
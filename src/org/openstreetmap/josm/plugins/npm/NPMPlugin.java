@@ -9,25 +9,60 @@ import org.openstreetmap.josm.io.auth.CredentialsManager;
 import org.openstreetmap.josm.plugins.Plugin;
 import org.openstreetmap.josm.plugins.PluginInformation;
 import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
 
 public class NPMPlugin extends Plugin {
     
     public final static String NPMPLUGIN_KEY = "plugins.native-password-manager.";
-    
+
+    /**
+     * System property to choose the password manager for this run, overriding the preference:
+     * a type like {@code kwallet}, or {@code off}. The environment variable {@value #OVERRIDE_ENV} works the same.
+     */
+    public static final String OVERRIDE_PROPERTY = "josm.npm.agent";
+    /** Environment variable to choose the password manager for this run, see {@link #OVERRIDE_PROPERTY} */
+    public static final String OVERRIDE_ENV = "JOSM_NPM_AGENT";
+
+    private static NPMCredentialsAgentFactory registeredFactory;
+
     public NPMPlugin(PluginInformation info) {
         super(info);
         initialize();
     }
     
     private void initialize() {
+        String override = System.getProperty(OVERRIDE_PROPERTY, System.getenv(OVERRIDE_ENV));
+        if (override != null && !override.isEmpty()) {
+            NPMType sel = NPMType.fromPrefString(override);
+            if (sel != null && sel != NPMType.PLAIN) {
+                registerFactory(new NPMCredentialsAgentFactory(sel));
+            } else if (sel == null && !"off".equals(override)) {
+                Logging.warn("Native Password Manager Plugin: unknown password manager " + override);
+            }
+            return;
+        }
         String pref = Config.getPref().get(NPMPLUGIN_KEY+"agent", null);
         if ("off".equals(pref)) return;
         NPMType sel = NPMType.fromPrefString(pref);
         if (sel != null) {
-            CredentialsManager.registerCredentialsAgentFactory(
-                    new NPMCredentialsAgentFactory(sel)
-            );
-        } else if (!GraphicsEnvironment.isHeadless()) {
+            registerFactory(new NPMCredentialsAgentFactory(sel));
+        } else if (GraphicsEnvironment.isHeadless()) {
+            if (hasPlainTextCredentials()) {
+                // the keyring agent would not see them, and nobody is there to confirm moving them
+                Logging.info("Native Password Manager Plugin: credentials are stored in plain text in the preferences,"
+                        + " keeping them there; choose a password manager in JOSM with a display, or move them with "
+                        + CredentialsMigrationTool.class.getSimpleName());
+                return;
+            }
+            // nobody to ask, so use what can be found within a short time
+            NPMType detected = BackendDetector.detect(Config.getPref().getLong(NPMPLUGIN_KEY+"headless-probe-timeout", 2_000), true);
+            if (detected != null) {
+                Logging.info("Native Password Manager Plugin: storing credentials in " + detected.getName() + " for this run");
+                registerFactory(new NPMCredentialsAgentFactory(detected));
+            } else {
+                Logging.info("Native Password Manager Plugin: no password manager found, storing credentials in the preferences");
+            }
+        } else {
             SwingUtilities.invokeLater(new Runnable() {
                 @Override
                 public void run() {
@@ -38,10 +73,36 @@ public class NPMPlugin extends Plugin {
         }
     }
 
+    /**
+     * Check whether any credentials are stored in plain text in the JOSM preferences.
+     * @return true if there is a login or OAuth token in the preferences
+     */
+    static boolean hasPlainTextCredentials() {
+        if (InitializationWizard.hasUnprotectedCedentials()) {
+            return true;
+        }
+        for (String key : Config.getPref().getKeySet()) {
+            if (key.startsWith("server.username.") || key.startsWith("server.password.")
+                    || key.startsWith("oauth.access-token.object.")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Register a factory with JOSM, and close the agent of the one it replaces.
+     */
+    private static synchronized void registerFactory(NPMCredentialsAgentFactory factory) {
+        CredentialsManager.registerCredentialsAgentFactory(factory);
+        if (registeredFactory != null) {
+            registeredFactory.close();
+        }
+        registeredFactory = factory;
+    }
+
     public static void selectAndSave(NPMType type) {
-        CredentialsManager.registerCredentialsAgentFactory(
-                new NPMCredentialsAgentFactory(type)
-        );
+        registerFactory(new NPMCredentialsAgentFactory(type));
         Config.getPref().put(NPMPLUGIN_KEY+"agent", type.toPrefString());
     }
     
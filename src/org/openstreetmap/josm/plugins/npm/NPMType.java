@@ -3,40 +3,65 @@ package org.openstreetmap.josm.plugins.npm;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Objects;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
 
-import org.netbeans.modules.keyring.gnome.GnomeProvider;
-import org.netbeans.modules.keyring.kde.KWalletProvider;
-import org.netbeans.modules.keyring.mac.MacProvider;
+import org.netbeans.spi.keyring.AsyncKeyringProvider;
 import org.netbeans.spi.keyring.KeyringProvider;
+import org.netbeans.spi.keyring.UnlockableKeyringProvider;
+import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.tools.JosmRuntimeException;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.PlatformManager;
 
+/**
+ * The registry of password managers.
+ * <p>
+ * Providers are registered by class name with a position, like in the NetBeans global lookup,
+ * and are only loaded and instantiated when {@link #getProvider()} is first called, so that
+ * the providers of other platforms are never loaded. All calls to a provider go through the
+ * {@link KeyringExecutor} of its type, which is shared by all users of the provider.
+ */
 public enum NPMType {
     PLAIN(
             "josm-standard",
             null,
+            Integer.MAX_VALUE,
+            () -> false,
             "default",
             tr("Plain text, JOSM default")
     ),
     GNOME_KEYRING(
             "gnome-keyring",
-            GnomeProvider.class,
+            "org.netbeans.modules.keyring.gnome.GnomeProvider",
+            100,
+            PlatformManager::isPlatformUnixoid,
             "gnome-keyring",
             tr("Use {0}", "gnome-keyring")
     ),
     KWALLET(
             "kwallet",
-            KWalletProvider.class,
+            "org.netbeans.modules.keyring.kde.KWalletProvider",
+            200,
+            PlatformManager::isPlatformUnixoid,
             "KWallet",
             tr("Use {0}", "KWallet")),
     KEYCHAIN(
             "keychain",
-            MacProvider.class,
+            "org.netbeans.modules.keyring.mac.MacProvider",
+            100,
+            PlatformManager::isPlatformOsx,
             "Apple Keychain",
             tr("Use {0}", "Mac OS X Keychain")),
     CRYPT32(
             "crypt32", 
-            Win32Provider.class,
+            "org.openstreetmap.josm.plugins.npm.Win32Provider",
+            100,
+            PlatformManager::isPlatformWindows,
             "Windows data encryption",
             tr("Encrypt data with Windows logon credentials")
     );
@@ -46,22 +71,23 @@ public enum NPMType {
     }
 
     private final String prefString;
+    private final String providerClassName;
+    private final int position;
+    private final BooleanSupplier platform;
     private final String name;
-    private final KeyringProvider provider;
     private final String introText;
     private final String selectionText;
+    private KeyringProvider provider;
+    private KeyringExecutor executor;
+    private AsyncKeyringProvider keyring;
+    private volatile Boolean enabled;
 
-    NPMType(String prefString, Class<? extends KeyringProvider> providerClass, String name, String selectionText) {
+    NPMType(String prefString, String providerClassName, int position, BooleanSupplier platform,
+            String name, String selectionText) {
         this.prefString = prefString;
-        if (providerClass != null) {
-            try {
-                this.provider = providerClass.getDeclaredConstructor().newInstance();
-            } catch (IllegalArgumentException | ReflectiveOperationException | SecurityException ex) {
-                throw new JosmRuntimeException(ex);
-            }
-        } else {
-            this.provider = null;
-        }
+        this.providerClassName = providerClassName;
+        this.position = position;
+        this.platform = platform;
         this.name = name;
         this.introText = genericIntro(name);
         this.selectionText = selectionText;
@@ -92,7 +118,101 @@ public enum NPMType {
         return name;
     }
     
-    public KeyringProvider getProvider() {
+    /**
+     * Get the position of this password manager, lower positions are preferred.
+     * @return the position
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Get the password managers which may be available on the running platform.
+     * @return the password managers, ordered by {@link #getPosition()}
+     */
+    public static List<NPMType> getCandidates() {
+        return Arrays.stream(values())
+                .filter(t -> t.providerClassName != null && t.platform.getAsBoolean())
+                .sorted(Comparator.comparingInt(NPMType::getPosition))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Get the provider, loading and instantiating it on first use.
+     * @return the provider, or null for {@link #PLAIN}
+     */
+    public synchronized KeyringProvider getProvider() {
+        if (provider == null && providerClassName != null) {
+            try {
+                provider = Class.forName(providerClassName).asSubclass(KeyringProvider.class)
+                        .getDeclaredConstructor().newInstance();
+            } catch (IllegalArgumentException | ReflectiveOperationException | SecurityException ex) {
+                throw new JosmRuntimeException(ex);
+            }
+        }
         return provider;
     }
+
+    /**
+     * Get the executor which runs all calls to the provider, creating it on first use.
+     * @return the executor, or null for {@link #PLAIN}
+     */
+    public synchronized KeyringExecutor getExecutor() {
+        if (executor == null && getProvider() != null) {
+            executor = createExecutor(this, provider);
+        }
+        return executor;
+    }
+
+    /**
+     * Get the keyring of this password manager as used by the credentials agents: the provider
+     * behind its executor and, if it can be locked, a layer which unlocks it when needed.
+     * @return the keyring, or null for {@link #PLAIN}
+     */
+    public synchronized AsyncKeyringProvider getKeyring() {
+        if (keyring == null && getExecutor() != null) {
+            keyring = createKeyring(provider, executor);
+        }
+        return keyring;
+    }
+
+    static KeyringExecutor createExecutor(NPMType type, KeyringProvider provider) {
+        KeyringProvider measured = InstrumentedKeyringProvider.create(provider,
+                KeyringMetrics.forBackend(type.toPrefString()));
+        return new KeyringExecutor(measured, Config.getPref().getLong(NPMPlugin.NPMPLUGIN_KEY + "timeout", 60_000),
+                Config.getPref().getInt(NPMPlugin.NPMPLUGIN_KEY + "queue-limit", 64));
+    }
+
+    static AsyncKeyringProvider createKeyring(KeyringProvider provider, KeyringExecutor executor) {
+        if (provider instanceof UnlockableKeyringProvider) {
+            // above the executor, so that callers wait for the unlock prompt instead of queueing behind it
+            return new UnlockingKeyringProvider((UnlockableKeyringProvider) provider, executor,
+                    Config.getPref().getLong(NPMPlugin.NPMPLUGIN_KEY + "unlock-cooldown", 60_000),
+                    Config.getPref().getLong(NPMPlugin.NPMPLUGIN_KEY + "unlock-timeout", 300_000));
+        }
+        return executor;
+    }
+
+    /**
+     * Check whether the password manager is available, asking the provider only once per session.
+     * <p>
+     * The provider is asked on the thread of its executor, and waited for at most the keyring timeout.
+     * A provider which does not answer in time counts as not available, but is asked again next time.
+     * @return true if the provider is enabled
+     */
+    public boolean isEnabled() {
+        Boolean known = enabled;
+        if (known == null) {
+            // not synchronized, a hanging backend must not block other callers
+            KeyringExecutor e = getExecutor();
+            try {
+                known = e != null && e.checkEnabled();
+            } catch (KeyringExecutor.KeyringBusyException ex) {
+                Logging.info("Native Password Manager Plugin: " + name + " did not answer: " + ex.getMessage());
+                return false;
+            }
+            enabled = known;
+        }
+        return known;
+    }
 }
@@ -0,0 +1,116 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.openstreetmap.josm.data.oauth.OAuthVersion;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Remembers for which hosts an OAuth token is stored in the keyring, and with which {@link OAuthVersion}.
+ * <p>
+ * The keyring cannot be enumerated, so without this index every lookup for a host
+ * would have to probe the backend. The index only contains host names and versions,
+ * no secrets, and is kept in the JOSM preferences. An index which is not persistent
+ * reads them, but keeps its changes to itself.
+ */
+public class OAuthHostIndex {
+
+    private static final String PREF_KEY = NPMPlugin.NPMPLUGIN_KEY + "oauth-index";
+
+    private final boolean persistent;
+    private Map<String, OAuthVersion> versions;
+
+    /**
+     * Create a new {@link OAuthHostIndex} which saves its changes to the preferences
+     */
+    public OAuthHostIndex() {
+        this(true);
+    }
+
+    /**
+     * Create a new {@link OAuthHostIndex}
+     * @param persistent whether changes are saved to the preferences, see {@link HostCredentialIndex#HostCredentialIndex(boolean)}
+     */
+    OAuthHostIndex(boolean persistent) {
+        this.persistent = persistent;
+    }
+
+    private synchronized Map<String, OAuthVersion> getVersions() {
+        if (versions == null) {
+            versions = new HashMap<>();
+            for (Map<String, String> entry : Config.getPref().getListOfMaps(PREF_KEY, Collections.emptyList())) {
+                String host = entry.get("host");
+                String version = entry.get("version");
+                if (host != null && version != null) {
+                    try {
+                        versions.put(host, OAuthVersion.valueOf(version));
+                    } catch (IllegalArgumentException e) {
+                        // unknown version, the host will be probed again
+                        Logging.trace(e);
+                    }
+                }
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Get the version of the token stored for a host.
+     * @param host the host
+     * @return the version, or null if the host is not in the index
+     */
+    public synchronized OAuthVersion get(String host) {
+        return getVersions().get(host);
+    }
+
+    /**
+     * Get all hosts with a stored token.
+     * @return the hosts, sorted
+     */
+    public synchronized Set<String> getHosts() {
+        return new TreeSet<>(getVersions().keySet());
+    }
+
+    /**
+     * Record that a token is stored for a host.
+     * @param host the host
+     * @param version the version of the token
+     */
+    public synchronized void put(String host, OAuthVersion version) {
+        if (getVersions().put(host, version) != version) {
+            save();
+        }
+    }
+
+    /**
+     * Record that no token is stored for a host.
+     * @param host the host
+     */
+    public synchronized void remove(String host) {
+        if (getVersions().remove(host) != null) {
+            save();
+        }
+    }
+
+    private void save() {
+        if (!persistent) {
+            return;
+        }
+        List<Map<String, String>> list = new ArrayList<>(versions.size());
+        for (Map.Entry<String, OAuthVersion> e : versions.entrySet()) {
+            Map<String, String> entry = new HashMap<>();
+            entry.put("host", e.getKey());
+            entry.put("version", e.getValue().name());
+            list.add(entry);
+        }
+        Config.getPref().putListOfMaps(PREF_KEY, list.isEmpty() ? null : list);
+    }
+}
@@ -0,0 +1,217 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.net.PasswordAuthentication;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import org.netbeans.modules.keyring.utils.Utils;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Caches logins without keeping them in plain text on the heap.
+ * <p>
+ * Each entry is a {@link CredentialRecord} encrypted with AES-GCM under a random key which
+ * exists only in this session. It is decrypted into temporary buffers on access, which are
+ * wiped before returning; only the returned {@link PasswordAuthentication} holds the plain text.
+ * Entries not accessed for the idle timeout are dropped, and the key is dropped with the last
+ * entry, so an idle session keeps neither secrets nor the key to them.
+ * <p>
+ * A failure of the cipher is treated like a miss, the caller reads the keyring again.
+ */
+public class SealedCredentialCache {
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+
+    private static final class Entry {
+        final byte[] iv;
+        final byte[] ciphertext;
+        long lastAccess;
+
+        Entry(byte[] iv, byte[] ciphertext, long lastAccess) {
+            this.iv = iv;
+            this.ciphertext = ciphertext;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private final long idleTimeout;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Entry> entries = new HashMap<>();
+    private SecretKey key;
+    private Cipher cipher;
+    private Timer expiry;
+
+    /**
+     * Create a new {@link SealedCredentialCache}
+     * @param idleTimeout the time in milliseconds after which an entry which was not accessed is dropped
+     */
+    public SealedCredentialCache(long idleTimeout) {
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+    }
+
+    /**
+     * Get a cached login.
+     * @param cacheKey the cache key
+     * @return a new {@link PasswordAuthentication}, or null if the login is not cached
+     */
+    public synchronized PasswordAuthentication get(String cacheKey) {
+        Entry entry = entries.get(cacheKey);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (now - entry.lastAccess > idleTimeout) {
+            remove(cacheKey);
+            return null;
+        }
+        byte[] plaintext = null;
+        char[] record = null;
+        char[][] fields = null;
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, entry.iv));
+            plaintext = cipher.doFinal(entry.ciphertext);
+            record = Utils.bytes2Chars(plaintext);
+            fields = CredentialRecord.decode(record, 2);
+            if (fields == null) {
+                remove(cacheKey);
+                return null;
+            }
+            entry.lastAccess = now;
+            // PasswordAuthentication copies the password
+            return new PasswordAuthentication(String.valueOf(fields[0]), fields[1]);
+        } catch (GeneralSecurityException e) {
+            Logging.warn("Native Password Manager Plugin: dropping cached login which cannot be decrypted: " + e);
+            remove(cacheKey);
+            return null;
+        } finally {
+            wipe(plaintext);
+            wipe(record);
+            if (fields != null) {
+                wipe(fields[0]);
+                wipe(fields[1]);
+            }
+        }
+    }
+
+    /**
+     * Cache a login.
+     * @param cacheKey the cache key
+     * @param username the username
+     * @param password the password, may be null; the array is not changed
+     */
+    public synchronized void put(String cacheKey, String username, char[] password) {
+        char[] user = username.toCharArray();
+        char[] record = CredentialRecord.encode(user, password);
+        byte[] plaintext = Utils.chars2Bytes(record);
+        try {
+            if (key == null) {
+                KeyGenerator generator = KeyGenerator.getInstance("AES");
+                generator.init(128, random);
+                key = generator.generateKey();
+            }
+            if (cipher == null) {
+                cipher = Cipher.getInstance(TRANSFORMATION);
+            }
+            byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+            entries.put(cacheKey, new Entry(iv, cipher.doFinal(plaintext), System.nanoTime()));
+            scheduleExpiry();
+        } catch (GeneralSecurityException e) {
+            Logging.warn("Native Password Manager Plugin: cannot cache login: " + e);
+            remove(cacheKey);
+        } finally {
+            wipe(user);
+            wipe(record);
+            wipe(plaintext);
+        }
+    }
+
+    /**
+     * Remove a login from the cache.
+     * @param cacheKey the cache key
+     */
+    public synchronized void remove(String cacheKey) {
+        entries.remove(cacheKey);
+        dropKeyIfEmpty();
+    }
+
+    /**
+     * Remove all logins whose cache key starts with a prefix.
+     * @param prefix the prefix
+     */
+    public synchronized void removeByPrefix(String prefix) {
+        entries.keySet().removeIf(k -> k.startsWith(prefix));
+        dropKeyIfEmpty();
+    }
+
+    /**
+     * Remove all logins.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        dropKeyIfEmpty();
+    }
+
+    private synchronized void expire() {
+        long now = System.nanoTime();
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            if (now - it.next().lastAccess > idleTimeout) {
+                it.remove();
+            }
+        }
+        dropKeyIfEmpty();
+    }
+
+    private void scheduleExpiry() {
+        if (expiry == null) {
+            expiry = new Timer("npm-cache-expiry", true);
+            long period = Math.max(1, TimeUnit.NANOSECONDS.toMillis(idleTimeout) / 2);
+            expiry.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    expire();
+                }
+            }, period, period);
+        }
+    }
+
+    private void dropKeyIfEmpty() {
+        if (entries.isEmpty()) {
+            // the key is not destroyable, dropping the reference is all that can be done
+            key = null;
+            cipher = null;
+            if (expiry != null) {
+                expiry.cancel();
+                expiry = null;
+            }
+        }
+    }
+
+    private static void wipe(char[] chars) {
+        if (chars != null) {
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    private static void wipe(byte[] bytes) {
+        if (bytes != null) {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import javax.swing.SwingUtilities;
+
+import org.netbeans.spi.keyring.AsyncKeyringProvider;
+import org.netbeans.spi.keyring.UnlockableKeyringProvider;
+import org.openstreetmap.josm.tools.JosmRuntimeException;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Makes sure a lockable keyring is unlocked before each operation, with a single unlock for
+ * all operations which arrive while the keyring is locked.
+ * <p>
+ * Sits above the {@link KeyringExecutor} of the keyring: the first operation checks whether the
+ * keyring is locked on the keyring thread, with the deadline of the executor, and if it is, unlocks
+ * it there, exempt from that deadline; all operations arriving in the meantime wait for that unlock
+ * instead of queueing behind the prompt, and are passed on to the executor together once it is done.
+ * An unlocked keyring is trusted for a few seconds without asking again. If the user declines to
+ * unlock, or does not answer within the unlock timeout, operations fail right away for the cooldown
+ * instead of asking again, with a {@link JosmRuntimeException}.
+ * <p>
+ * Blocking operations wait for the check at most the timeout of the executor, and for the prompt only
+ * off the event dispatch thread; otherwise they fail with a {@link KeyringExecutor.KeyringBusyException}.
+ */
+public class UnlockingKeyringProvider implements AsyncKeyringProvider {
+
+    private static final String NPM = "Native Password Manager Plugin: ";
+    /** how long an unlocked keyring is trusted to stay unlocked, in nanoseconds */
+    private static final long TRUST_UNLOCKED = TimeUnit.SECONDS.toNanos(5);
+
+    private final UnlockableKeyringProvider provider;
+    private final KeyringExecutor executor;
+    private final long cooldown;
+    private final long unlockTimeout;
+
+    /** the unlock in progress, null if there is none */
+    private CompletableFuture<Boolean> unlocking;
+    /** whether the unlock in progress waits for the user */
+    private volatile boolean prompting;
+    private long unlockedAt;
+    private boolean unlocked;
+    private long declinedAt;
+    private boolean declined;
+
+    /**
+     * Create a new {@link UnlockingKeyringProvider}
+     * @param provider the provider of the lockable keyring
+     * @param executor the executor which runs all calls to {@code provider}
+     * @param cooldown the time in milliseconds not to ask again after the user declined to unlock
+     * @param unlockTimeout the maximum time in milliseconds to wait for the user to unlock
+     */
+    public UnlockingKeyringProvider(UnlockableKeyringProvider provider, KeyringExecutor executor, long cooldown,
+            long unlockTimeout) {
+        this.provider = provider;
+        this.executor = executor;
+        this.cooldown = TimeUnit.MILLISECONDS.toNanos(cooldown);
+        this.unlockTimeout = unlockTimeout;
+    }
+
+    /**
+     * Get the unlocked state of the keyring, unlocking it if no other operation is doing so.
+     * @return a future which completes with true if the keyring is unlocked, false if it stays locked,
+     * or with a {@link KeyringExecutor.KeyringBusyException} if the keyring did not tell whether it is locked
+     */
+    private synchronized CompletableFuture<Boolean> awaitUnlocked() {
+        if (unlocking != null) {
+            return unlocking;
+        }
+        long now = System.nanoTime();
+        if (declined && now - declinedAt < cooldown) {
+            return CompletableFuture.completedFuture(false);
+        }
+        if (unlocked && now - unlockedAt < TRUST_UNLOCKED) {
+            return CompletableFuture.completedFuture(true);
+        }
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        unlocking = result;
+        // the check does not wait for the user, so it gets the deadline of the other keyring calls
+        executor.callAsync("lock check", provider::isLocked).whenComplete((locked, e) -> {
+            if (e != null) {
+                // no answer of the user, so no cooldown: the next operation asks again,
+                // and fails at once in the executor while the backend is still hanging
+                synchronized (this) {
+                    unlocking = null;
+                }
+                result.completeExceptionally(e);
+            } else if (!locked) {
+                unlockDone(result, true);
+            } else {
+                prompting = true;
+                executor.interactAsync("unlock", this::unlock, unlockTimeout).whenComplete((ok, e2) -> {
+                    if (e2 != null) {
+                        Logging.warn(NPM + "Could not unlock the keyring, not asking again for "
+                                + TimeUnit.NANOSECONDS.toSeconds(cooldown) + " s: " + e2);
+                    }
+                    unlockDone(result, e2 == null && ok);
+                });
+            }
+        });
+        return result;
+    }
+
+    private void unlockDone(CompletableFuture<Boolean> result, boolean success) {
+        synchronized (this) {
+            unlocking = null;
+            prompting = false;
+            unlocked = success;
+            unlockedAt = System.nanoTime();
+            declined = !success;
+            declinedAt = unlockedAt;
+        }
+        result.complete(success);
+    }
+
+    private boolean unlock() {
+        Logging.info(NPM + "Keyring is locked, asking to unlock it");
+        boolean success = provider.unlock();
+        if (!success) {
+            Logging.warn(NPM + "Keyring stays locked, not asking again for " + TimeUnit.NANOSECONDS.toSeconds(cooldown) + " s");
+        }
+        return success;
+    }
+
+    private static KeyringExecutor.KeyringBusyException busy(String message) {
+        Logging.warn(NPM + message);
+        return new KeyringExecutor.KeyringBusyException(message);
+    }
+
+    private static JosmRuntimeException locked(String operation) {
+        return new JosmRuntimeException("Keyring is locked, cannot " + operation);
+    }
+
+    private void requireUnlocked(String operation) {
+        boolean success;
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> unlock = awaitUnlocked();
+        try {
+            try {
+                success = unlock.get(executor.getTimeout(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (!prompting) {
+                    throw busy("Keyring did not tell within " + executor.getTimeout() + " ms whether it is locked, cannot "
+                            + operation);
+                } else if (SwingUtilities.isEventDispatchThread()) {
+                    throw busy("Keyring is waiting to be unlocked, cannot " + operation + " on the event dispatch thread");
+                }
+                // the prompt ends within the unlock timeout
+                success = unlock.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KeyringExecutor.KeyringBusyException("Interrupted while waiting for the keyring to be unlocked");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new JosmRuntimeException(e.getCause());
+        } finally {
+            EdtBlockingDetector.check("keyring unlock", start);
+        }
+        if (!success) {
+            throw locked(operation);
+        }
+    }
+
+    private <T> CompletableFuture<T> whenUnlocked(String operation, Supplier<CompletableFuture<T>> call) {
+        return awaitUnlocked().thenCompose(success -> success ? call.get() : CompletableFuture.failedFuture(locked(operation)));
+    }
+
+    @Override
+    public boolean enabled() {
+        return executor.enabled();
+    }
+
+    @Override
+    public char[] read(String key) {
+        requireUnlocked("read");
+        return executor.read(key);
+    }
+
+    @Override
+    public Map<String, char[]> readAll(Collection<String> keys) {
+        requireUnlocked("read");
+        return executor.readAll(keys);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, char[]>> readAllAsync(Collection<String> keys) {
+        return whenUnlocked("read", () -> executor.readAllAsync(keys));
+    }
+
+    @Override
+    public void save(String key, char[] password, String description) {
+        requireUnlocked("save");
+        executor.save(key, password, description);
+    }
+
+    @Override
+    public void saveAll(Map<String, char[]> passwords, Map<String, String> descriptions) {
+        requireUnlocked("save");
+        executor.saveAll(passwords, descriptions);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveAllAsync(Map<String, char[]> passwords, Map<String, String> descriptions) {
+        return whenUnlocked("save", () -> executor.saveAllAsync(passwords, descriptions));
+    }
+
+    @Override
+    public void delete(String key) {
+        requireUnlocked("delete");
+        executor.delete(key);
+    }
+
+    @Override
+    public void deleteAll(Collection<String> keys) {
+        requireUnlocked("delete");
+        executor.deleteAll(keys);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAllAsync(Collection<String> keys) {
+        return whenUnlocked("delete", () -> executor.deleteAllAsync(keys));
+    }
+}
@@ -0,0 +1,320 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.npm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import org.netbeans.spi.keyring.AsyncKeyringProvider;
+import org.netbeans.spi.keyring.KeyringProvider;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Queues writes to a {@link KeyringProvider} and persists them on a background thread,
+ * so that storing credentials never waits for the backend.
+ * <p>
+ * Pending writes are coalesced per key, the last write wins. Reads see pending writes
+ * immediately. {@link #flush} waits until everything queued so far has been written,
+ * the futures of the asynchronous writes complete when their batch has been written.
+ * <p>
+ * A batch which fails is not retried: the futures of all its writes fail, so that actions
+ * depending on them do not run, and reads go to the backend again for its keys.
+ */
+public class WriteBehindKeyringProvider implements AsyncKeyringProvider {
+
+    /** A pending write, {@code value == null} means delete */
+    private static class Write {
+        final char[] value;
+        final String description;
+
+        Write(char[] value, String description) {
+            this.value = value;
+            this.description = description;
+        }
+    }
+
+    /** A caller waiting for all writes up to {@code submitted == seq} */
+    private static class Waiter {
+        final long seq;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Waiter(long seq) {
+            this.seq = seq;
+        }
+    }
+
+    private final KeyringProvider provider;
+    private final AsyncKeyringProvider asyncProvider;
+    private final Consumer<RuntimeException> failureHandler;
+    private final Object lock = new Object();
+    /** writes waiting for the writer thread, in order of their first submission */
+    private final Map<String, Write> pending = new LinkedHashMap<>();
+    /** writes the writer thread is busy with */
+    private final Map<String, Write> writing = new LinkedHashMap<>();
+    private final Deque<Waiter> waiters = new ArrayDeque<>();
+    private long submitted;
+    private long persisted;
+    private Thread writer;
+
+    /**
+     * Create a new {@link WriteBehindKeyringProvider}
+     * @param provider the provider to write to
+     * @param failureHandler called on the writer thread when a write could not be persisted,
+     * once reads no longer see the failed writes, so that values read from them can be dropped
+     */
+    public WriteBehindKeyringProvider(KeyringProvider provider, Consumer<RuntimeException> failureHandler) {
+        this.provider = provider;
+        this.asyncProvider = provider instanceof AsyncKeyringProvider ? (AsyncKeyringProvider) provider : null;
+        this.failureHandler = failureHandler;
+    }
+
+    @Override
+    public boolean enabled() {
+        return provider.enabled();
+    }
+
+    @Override
+    public char[] read(String key) {
+        return readAll(Arrays.asList(key)).get(key);
+    }
+
+    @Override
+    public Map<String, char[]> readAll(Collection<String> keys) {
+        Map<String, char[]> result = new LinkedHashMap<>();
+        List<String> missing = readPending(keys, result);
+        if (!missing.isEmpty()) {
+            result.putAll(provider.readAll(missing));
+        }
+        return result;
+    }
+
+    /**
+     * Read from the backend without blocking if it is asynchronous, otherwise on the calling thread.
+     */
+    @Override
+    public CompletableFuture<Map<String, char[]>> readAllAsync(Collection<String> keys) {
+        Map<String, char[]> result = new LinkedHashMap<>();
+        List<String> missing = readPending(keys, result);
+        if (missing.isEmpty()) {
+            return CompletableFuture.completedFuture(result);
+        } else if (asyncProvider == null) {
+            result.putAll(provider.readAll(missing));
+            return CompletableFuture.completedFuture(result);
+        }
+        return asyncProvider.readAllAsync(missing).thenApply(values -> {
+            result.putAll(values);
+            return result;
+        });
+    }
+
+    /**
+     * Put the pending values of the given keys into {@code result}.
+     * @return the keys without pending write, which have to be read from the backend
+     */
+    private List<String> readPending(Collection<String> keys, Map<String, char[]> result) {
+        List<String> missing = new ArrayList<>(keys.size());
+        synchronized (lock) {
+            for (String key : keys) {
+                Write write = pending.get(key);
+                if (write == null) {
+                    write = writing.get(key);
+                }
+                if (write == null) {
+                    missing.add(key);
+                } else if (write.value != null) {
+                    result.put(key, write.value.clone());
+                }
+            }
+        }
+        return missing;
+    }
+
+    @Override
+    public void save(String key, char[] password, String description) {
+        saveAsync(key, password, description);
+    }
+
+    @Override
+    public void saveAll(Map<String, char[]> passwords, Map<String, String> descriptions) {
+        saveAllAsync(passwords, descriptions);
+    }
+
+    @Override
+    public void delete(String key) {
+        deleteAsync(key);
+    }
+
+    @Override
+    public void deleteAll(Collection<String> keys) {
+        deleteAllAsync(keys);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveAllAsync(Map<String, char[]> passwords, Map<String, String> descriptions) {
+        Map<String, Write> writes = new LinkedHashMap<>();
+        for (Map.Entry<String, char[]> e : passwords.entrySet()) {
+            writes.put(e.getKey(), new Write(e.getValue().clone(),
+                    descriptions == null ? null : descriptions.get(e.getKey())));
+        }
+        return enqueue(writes);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAllAsync(Collection<String> keys) {
+        Map<String, Write> writes = new LinkedHashMap<>();
+        for (String key : keys) {
+            writes.put(key, new Write(null, null));
+        }
+        return enqueue(writes);
+    }
+
+    private CompletableFuture<Void> enqueue(Map<String, Write> writes) {
+        if (writes.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        synchronized (lock) {
+            for (Map.Entry<String, Write> e : writes.entrySet()) {
+                // remove first, so that the key moves to the end of the queue
+                pending.remove(e.getKey());
+                pending.put(e.getKey(), e.getValue());
+                submitted++;
+            }
+            Waiter waiter = new Waiter(submitted);
+            waiters.add(waiter);
+            if (writer == null) {
+                writer = new Thread(this::writeLoop, "npm-keyring-writer");
+                writer.setDaemon(true);
+                writer.start();
+            }
+            lock.notifyAll();
+            return waiter.future;
+        }
+    }
+
+    /**
+     * Wait until all writes queued before this call have been passed to the backend.
+     * @param timeout the maximum time to wait in milliseconds
+     * @return true if everything was written, false on timeout or interrupt
+     */
+    public boolean flush(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (lock) {
+            long target = submitted;
+            while (persisted < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Let the writer thread end once all writes queued so far have been written.
+     * Later writes start a new one.
+     * @param timeout the maximum time to wait for the writes in milliseconds
+     * @return true if everything was written, false if the writer thread is left running
+     */
+    public boolean close(long timeout) {
+        if (!flush(timeout)) {
+            return false;
+        }
+        synchronized (lock) {
+            // an idle writer waits for the lock, and gives it up when interrupted
+            if (writer != null && pending.isEmpty()) {
+                writer.interrupt();
+                writer = null;
+            }
+        }
+        return true;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            long batch;
+            synchronized (lock) {
+                while (pending.isEmpty()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        if (writer == Thread.currentThread()) {
+                            writer = null;
+                        }
+                        return;
+                    }
+                }
+                writing.putAll(pending);
+                pending.clear();
+                batch = submitted;
+            }
+            Map<String, char[]> saves = new LinkedHashMap<>();
+            Map<String, String> descriptions = new HashMap<>();
+            List<String> deletes = new ArrayList<>();
+            for (Map.Entry<String, Write> e : writing.entrySet()) {
+                if (e.getValue().value == null) {
+                    deletes.add(e.getKey());
+                } else {
+                    saves.put(e.getKey(), e.getValue().value);
+                    descriptions.put(e.getKey(), e.getValue().description);
+                }
+            }
+            RuntimeException failure = null;
+            try {
+                if (!saves.isEmpty()) {
+                    provider.saveAll(saves, descriptions);
+                }
+                if (!deletes.isEmpty()) {
+                    provider.deleteAll(deletes);
+                }
+            } catch (RuntimeException e) {
+                Logging.error(e);
+                failure = e;
+            }
+            if (failure != null) {
+                synchronized (lock) {
+                    writing.clear();
+                }
+                // before flush returns, outside the lock since the handler may read
+                failureHandler.accept(failure);
+            }
+            List<Waiter> done = new ArrayList<>();
+            synchronized (lock) {
+                if (failure == null) {
+                    // our copies of the secrets are not needed anymore; after a failure the
+                    // backend might still be busy with them, so they are left to the GC then
+                    saves.values().forEach(v -> Arrays.fill(v, '\0'));
+                }
+                writing.clear();
+                persisted = batch;
+                while (!waiters.isEmpty() && waiters.peek().seq <= batch) {
+                    done.add(waiters.poll());
+                }
+                lock.notifyAll();
+            }
+            // outside the lock, the futures may run dependent actions
+            for (Waiter waiter : done) {
+                if (failure == null) {
+                    waiter.future.complete(null);
+                } else {
+                    waiter.future.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+}